@@ -0,0 +1,95 @@
+import java.io.*;
+
+/** Input stream that uncompresses data written by an
+  * AdaptiveHuffmanOutputStream.
+  * 
+  * The stream mirrors the encoder's AdaptiveHuffmanModel, updating it with
+  * every decoded byte, so it always decodes with the codes that byte was
+  * encoded with.
+  * 
+  * Everything the encoder flushed can be read without waiting for what it
+  * writes next: while fewer bits have arrived than the longest table lookup
+  * of HuffmanDecoder, codes are decoded a bit at a time, and read(byte[])
+  * returns what it has rather than wait for more input.
+  */
+public class AdaptiveHuffmanInputStream extends InputStream {
+    
+    private BitInputStream input;       // the compressed stream
+    private AdaptiveHuffmanModel model; // the current codes
+    private boolean finished;           // whether the pseudo-EOF has been read
+    
+    private static final int NONE = -2; // no byte is ready without waiting
+    
+    
+    /** Constructs an AdaptiveHuffmanInputStream.
+      * 
+      * @param input the stream holding the compressed data.
+      * @throws IOException if the stream does not start with
+      *         AdaptiveHuffmanOutputStream.MAGIC or LEGACY_MAGIC.
+      */
+    public AdaptiveHuffmanInputStream(InputStream input) throws IOException {
+        this.input = new BitInputStream(input);
+        int magic = (int) this.input.readBits(Integer.SIZE);
+        if (magic != AdaptiveHuffmanOutputStream.MAGIC
+                && magic != AdaptiveHuffmanOutputStream.LEGACY_MAGIC)
+            throw new IOException("Not an adaptive Huffman stream");
+        model = new AdaptiveHuffmanModel(magic == AdaptiveHuffmanOutputStream.LEGACY_MAGIC, true);
+    }
+    
+    
+    @Override
+    public int read() throws IOException {
+        return next(true);
+    }
+    
+    
+    /** Decodes the next byte, skipping the padding after any FLUSH codes.
+      * 
+      * @param block whether to wait for input when no bits have arrived.
+      * @return the next byte, -1 at the end of the stream, or NONE if block
+      *         is false and no bits have arrived.
+      * @throws IOException if the stream ends before the pseudo-EOF.
+      */
+    private int next(boolean block) throws IOException {
+        while (!finished) {
+            if (!block && input.bitsReady() == 0)
+                return NONE;
+            int n = input.bitsReady() >= HuffmanDecoder.LOOKAHEAD_BITS
+                    ? model.decoder.decode(input)
+                    : model.decoder.decodeBits(input);
+            if (n == -1)
+                throw new EOFException("Adaptive Huffman stream is truncated");
+            if (n == AdaptiveHuffmanModel.EOF) {
+                finished = true;
+            } else if (n == AdaptiveHuffmanModel.FLUSH) {
+                input.skipToByte();
+            } else {
+                model.update(n);
+                return n;
+            }
+        }
+        return -1;
+    }
+    
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        // only the first byte waits for input
+        int c = next(true);
+        if (c == -1)
+            return -1;
+        b[off] = (byte) c;
+        int n = 1;
+        while (n < len && (c = next(false)) >= 0)
+            b[off + n++] = (byte) c;
+        return n;
+    }
+    
+    
+    @Override
+    public void close() {
+        input.close();
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.*;
+
+/** Character model shared by the two ends of an adaptive Huffman stream.
+  * 
+  * The model starts out with every character equally likely, so coding can
+  * begin with the very first byte, and counts each character as it is coded.
+  * After every interval characters the codes are rebuilt from the counts; the
+  * interval starts short, so the codes adapt quickly at the start of a stream,
+  * and doubles up to MAX_INTERVAL, so that rebuilding stays a negligible part
+  * of the work. Once the counts add up to MAX_TOTAL they are halved, which
+  * keeps them within range and lets the codes follow changes in the data.
+  * 
+  * The encoder and the decoder make exactly the same sequence of calls to
+  * update, so they always agree on the current codes. Memory use is constant
+  * no matter how long the stream is.
+  * 
+  * The model also has a FLUSH code, which the encoder writes to mark a byte
+  * boundary that the decoder skips to; like the pseudo-EOF it always keeps a
+  * count of 1. Only the decoding end needs a HuffmanDecoder, so the encoding
+  * end does not build one.
+  * 
+  * The codes are part of the stream format, so a change to how they are
+  * built needs a new magic number. A legacy model decodes the streams that
+  * AdaptiveHuffmanOutputStream wrote under LEGACY_MAGIC: it has no FLUSH
+  * code and builds its codes from a HuffmanTree made canonical, with its
+  * ties and unlimited lengths, rather than with HuffmanTree.codeLengths.
+  */
+public class AdaptiveHuffmanModel {
+    
+    public static final int EOF = 256;   // pseudo-EOF that ends a stream
+    public static final int FLUSH = 257; // padding to a byte boundary follows
+    
+    private static final int FIRST_INTERVAL = 1 << 8;  // characters before the first rebuild
+    private static final int MAX_INTERVAL = 1 << 16;   // most characters between rebuilds
+    private static final long MAX_TOTAL = 1L << 16;    // count total that triggers halving
+    
+    private long[] count;   // occurrences of each character, at least 1
+    private long total;     // sum of the characters' counts
+    private int interval;   // characters between rebuilds
+    private int untilRebuild; // characters left before the next rebuild
+    
+    long[] codes;           // current code of each character, first bit lowest
+    int[] lengths;          // current code length of each character
+    HuffmanDecoder decoder; // decoder for the current codes, or null
+    private boolean legacy;   // whether codes are built as in LEGACY_MAGIC streams
+    private boolean decoding; // whether decoder is kept up to date
+    
+    
+    /** Constructs a model in which every character is equally likely.
+      * 
+      * @param legacy whether the model codes a LEGACY_MAGIC stream.
+      * @param decoding whether the model is used to decode, and so builds
+      *        a decoder for its codes.
+      */
+    public AdaptiveHuffmanModel(boolean legacy, boolean decoding) {
+        // the last count is the pseudo-EOF's when there is a FLUSH code,
+        // which codeLengths then adds as the implicit last symbol
+        count = new long[legacy ? EOF : EOF + 1];
+        Arrays.fill(count, 1);
+        total = EOF;
+        interval = FIRST_INTERVAL;
+        this.legacy = legacy;
+        this.decoding = decoding;
+        rebuild();
+    }
+    
+    
+    /** Records one more occurrence of the supplied character, rebuilding the
+      * codes when the interval is up.
+      * 
+      * @param n the character that was just coded.
+      */
+    public void update(int n) {
+        count[n]++;
+        total++;
+        if (--untilRebuild == 0) {
+            if (total >= MAX_TOTAL) {
+                total = 0;
+                for (int i = 0; i < EOF; i++) {
+                    count[i] = (count[i] + 1) / 2;
+                    total += count[i];
+                }
+            }
+            interval = Math.min(interval * 2, MAX_INTERVAL);
+            rebuild();
+        }
+    }
+    
+    
+    /** Rebuilds the codes, and the decoder if decoding, from the current
+      * counts.
+      */
+    private void rebuild() {
+        if (legacy) {
+            HuffmanTree tree = new HuffmanTree(count);
+            tree.makeCanonical();
+            codes = new long[EOF + 1];
+            lengths = new int[EOF + 1];
+            tree.getCodes(codes, lengths);
+        } else {
+            lengths = HuffmanTree.codeLengths(count, HuffmanTree.DEFAULT_MAX_LENGTH);
+            codes = HuffmanTree.canonicalCodes(lengths);
+        }
+        if (decoding)
+            decoder = new HuffmanDecoder(codes, lengths);
+        untilRebuild = interval;
+    }
+}
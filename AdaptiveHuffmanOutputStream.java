@@ -0,0 +1,77 @@
+import java.io.*;
+
+/** Output stream that compresses everything written to it with adaptive
+  * Huffman codes.
+  * 
+  * Unlike HuffmanOutputStream, nothing has to be collected before coding
+  * starts: each byte is encoded as soon as it is written, using codes that an
+  * AdaptiveHuffmanModel keeps rebuilding from the bytes seen so far. This
+  * suits unbounded streams such as sockets and pipes. The stream starts with
+  * MAGIC and ends with the pseudo-EOF code.
+  * 
+  * Streams written before the FLUSH code existed, whose model also built its
+  * codes differently, start with LEGACY_MAGIC instead;
+  * AdaptiveHuffmanInputStream still reads them with a legacy model.
+  */
+public class AdaptiveHuffmanOutputStream extends OutputStream {
+    
+    public static final int MAGIC = 0x50465548;        // "HUFP" in file order
+    public static final int LEGACY_MAGIC = 0x41465548; // "HUFA", older codes, no FLUSH
+    
+    private BitOutputStream output;     // the compressed stream
+    private AdaptiveHuffmanModel model; // the current codes
+    private boolean closed;             // whether close has been called
+    
+    
+    /** Constructs an AdaptiveHuffmanOutputStream.
+      * 
+      * @param output the stream that receives the compressed data.
+      */
+    public AdaptiveHuffmanOutputStream(OutputStream output) {
+        this.output = new BitOutputStream(output);
+        this.output.writeBits(MAGIC, Integer.SIZE);
+        model = new AdaptiveHuffmanModel(false, false);
+    }
+    
+    
+    @Override
+    public void write(int b) {
+        b &= 0xFF;
+        output.writeBits(model.codes[b], model.lengths[b]);
+        model.update(b);
+    }
+    
+    
+    @Override
+    public void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            write(b[i]);
+    }
+    
+    
+    /** Writes out all the compressed data so far, so that the receiving end
+      * can decode every byte written before the flush.
+      * 
+      * The FLUSH code is written and padded with 0s to a whole byte, which
+      * costs a little over a byte of output per call.
+      */
+    @Override
+    public void flush() {
+        int flush = AdaptiveHuffmanModel.FLUSH;
+        output.writeBits(model.codes[flush], model.lengths[flush]);
+        output.writeBits(0, (int) (-output.bitsWritten() & 7));
+        output.flush();
+    }
+    
+    
+    /** Writes the pseudo-EOF code and closes the underlying stream. */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        int eof = AdaptiveHuffmanModel.EOF;
+        output.writeBits(model.codes[eof], model.lengths[eof]);
+        output.close();
+    }
+}
@@ -1,14 +1,50 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
 /**
  * Balanced binary search tree.
+ * 
+ * By default the tree is an AVL tree: after every insertion and removal the
+ * nodes on the path back to the root are rebalanced, so the levels of the two
+ * subtrees of every node differ by at most one and the tree has a depth of at
+ * most about 1.44 log2(n). A tree constructed with balancing turned off keeps
+ * its levels up to date but never rotates, which is only useful to compare
+ * against. addAll builds a perfectly balanced tree in either case.
  */
 public class BinarySearchTree {
 	public Node root;
+	
+	private final boolean balanced;
+	private int size;
 
 	/**
-	 * Constructs an empty binary search tree.
+	 * Constructs an empty balanced binary search tree.
 	 */
 	public BinarySearchTree() {
+		this(true);
+	}
+
+	/**
+	 * Constructs an empty binary search tree.
+	 * 
+	 * @param balanced True to rebalance the tree after every change; false to
+	 *                 leave it in the shape the insertion order gives it.
+	 */
+	public BinarySearchTree(boolean balanced) {
 		root = null;
+		this.balanced = balanced;
+	}
+
+	/**
+	 * Returns the level of a node, where a leaf has level 0.
+	 * 
+	 * @param node The node, which may be null.
+	 * 
+	 * @return The level of the node, or -1 if the node is null.
+	 */
+	private static int level(Node node) {
+		return node == null ? -1 : node.level;
 	}
 
 	/**
@@ -18,22 +54,7 @@ public class BinarySearchTree {
 	 * @param currentRoot Node that will have its level updated.
 	 */
 	private void updateLevel(Node currentRoot) {
-		Node child;
-		if(currentRoot.left != null) {
-			child = currentRoot.left;
-		}
-		else {
-			child = currentRoot.right;
-		}
-		if (child != null){
-			currentRoot.level = child.level + 1;
-		}
-		else{
-			currentRoot.level = 0;
-		}
-		
-
-
+		currentRoot.level = 1 + Math.max(level(currentRoot.left), level(currentRoot.right));
 	}
 
 	/**
@@ -48,7 +69,7 @@ public class BinarySearchTree {
 	 *         - a negative number if the left subtree has a higher level.
 	 */
 	private int calculateSkew(Node currentRoot) {
-		return 1000000; // wow
+		return level(currentRoot.right) - level(currentRoot.left);
 	}
 
 	/**
@@ -60,6 +81,16 @@ public class BinarySearchTree {
 	 * @param pivot The pivot node.
 	 */
 	void rotateLeft(Node top, Node pivot) {
+		top.right = pivot.left;
+		if(pivot.left != null) {
+			pivot.left.parent = top;
+		}
+		replaceChild(top, pivot);
+		pivot.left = top;
+		top.parent = pivot;
+
+		updateLevel(top);
+		updateLevel(pivot);
 	}
 
 	/**
@@ -71,6 +102,37 @@ public class BinarySearchTree {
 	 * @param pivot The pivot node.
 	 */
 	void rotateRight(Node top, Node pivot) {
+		top.left = pivot.right;
+		if(pivot.right != null) {
+			pivot.right.parent = top;
+		}
+		replaceChild(top, pivot);
+		pivot.right = top;
+		top.parent = pivot;
+
+		updateLevel(top);
+		updateLevel(pivot);
+	}
+
+	/**
+	 * Puts a node in the place of another in the tree, by linking it
+	 * to the parent of the other node (or making it the root).
+	 * 
+	 * @param oldChild The node being replaced.
+	 * @param newChild The node taking its place.
+	 */
+	private void replaceChild(Node oldChild, Node newChild) {
+		Node parent = oldChild.parent;
+		newChild.parent = parent;
+		if(parent == null) {
+			root = newChild;
+		}
+		else if(parent.left == oldChild) {
+			parent.left = newChild;
+		}
+		else {
+			parent.right = newChild;
+		}
 	}
 
 	/**
@@ -80,6 +142,52 @@ public class BinarySearchTree {
 	 * @param currentRoot Node to be rebalanced.
 	 */
 	void rebalance(Node currentRoot) {
+		updateLevel(currentRoot);
+		if(!balanced) {
+			return;
+		}
+
+		int skew = calculateSkew(currentRoot);
+		if(skew > 1) {
+			// Right-left case: first bring the inner grandchild up
+			if(calculateSkew(currentRoot.right) < 0) {
+				rotateRight(currentRoot.right, currentRoot.right.left);
+			}
+			rotateLeft(currentRoot, currentRoot.right);
+		}
+		else if(skew < -1) {
+			// Left-right case: first bring the inner grandchild up
+			if(calculateSkew(currentRoot.left) > 0) {
+				rotateLeft(currentRoot.left, currentRoot.left.right);
+			}
+			rotateRight(currentRoot, currentRoot.left);
+		}
+	}
+
+	/**
+	 * Fixes the levels and balance of a node and its ancestors after the
+	 * subtree rooted at the node has changed, walking up the parent links.
+	 * 
+	 * An ancestor's level and skew depend only on the levels of its children,
+	 * so once a subtree is back at its old level the walk can stop.
+	 * 
+	 * @param currentRoot The lowest node whose subtree has changed.
+	 */
+	private void rebalanceUpward(Node currentRoot) {
+		while(currentRoot != null) {
+			Node parent = currentRoot.parent;
+			int oldLevel = currentRoot.level;
+
+			rebalance(currentRoot);
+
+			// After a rotation the subtree has a new root
+			Node top = currentRoot.parent == parent ? currentRoot : currentRoot.parent;
+			if(top.level == oldLevel) {
+				return;
+			}
+
+			currentRoot = parent;
+		}
 	}
 
 	/**
@@ -90,61 +198,168 @@ public class BinarySearchTree {
 	 * @return True if the element was inserted; false if the value was already present.
 	 */
 	public boolean add(int value) {
-		Node temp = new Node(value);
-
 		if(root == null) {
-			root = temp;
+			root = new Node(value);
+			size = 1;
 
 			return true;
 		}
-		else {
 
-			return add(temp, root);
+		// Walk down to the node that gets the new leaf as a child
+		Node currentRoot = root;
+		while(true) {
+			if(value < currentRoot.value) {
+				if(currentRoot.left == null) {
+					break;
+				}
+				currentRoot = currentRoot.left;
+			}
+			else if(value > currentRoot.value) {
+				if(currentRoot.right == null) {
+					break;
+				}
+				currentRoot = currentRoot.right;
+			}
+			else {
+				return false;
+			}
+		}
+
+		Node node = new Node(value);
+		node.parent = currentRoot;
+		if(value < currentRoot.value) {
+			currentRoot.left = node;
+		}
+		else {
+			currentRoot.right = node;
 		}
+
+		size++;
+
+		// The subtree has grown, so fix levels and balance on the way up
+		rebalanceUpward(currentRoot);
+
+		return true;
 	}
 
 	/**
-	 * Adds a node into a (non-null) subtree rooted at currentRoot.
+	 * Adds all elements of a sorted array into the tree.
 	 * 
-	 * @param node The node being inserted.
-	 * @param currentRoot The root of the current subtree where we're adding the node.
+	 * An empty tree is built directly from the keys, perfectly balanced, in
+	 * linear time. Otherwise a batch that is small next to the tree is added
+	 * key by key, and a larger one is merged with the keys of the tree and
+	 * the whole tree rebuilt, in time linear in the size of both. Either way
+	 * the existing nodes are kept.
 	 * 
-	 * @return True if the element was inserted; false if the value was already present.
+	 * @param sortedKeys The elements to be inserted, in ascending order;
+	 *                   repeated elements are inserted once.
+	 * 
+	 * @throws IllegalArgumentException if the keys are not in ascending order.
+	 * 
+	 * @return True if any element was inserted; false if all were already present.
 	 */
-	private boolean add(Node node, Node currentRoot) {
-		updateLevel(currentRoot);
-		if(node.value < currentRoot.value) {
-			node.parent = currentRoot;
-			
-			if(currentRoot.left != null) {
-				
-				boolean result = add(node, currentRoot.left);
-				
-				return result;
-			}
-			else {
-				currentRoot.left = node;
-
-				return true;
+	public boolean addAll(int[] sortedKeys) {
+		for(int i = 1; i < sortedKeys.length; i++) {
+			if(sortedKeys[i] < sortedKeys[i - 1]) {
+				throw new IllegalArgumentException("Keys are not sorted at index " + i);
 			}
 		}
-		else if(node.value > currentRoot.value) {
-			node.parent = currentRoot;
-			
-			if(currentRoot.right != null) {
-				boolean result = add(node, currentRoot.right);
-				
 
-				return result;
+		// A few keys cost less to add one at a time than a rebuild does
+		if(root != null && (long) sortedKeys.length * (root.level + 1) < size) {
+			boolean changed = false;
+			for(int key : sortedKeys) {
+				changed |= add(key);
+			}
+			return changed;
+		}
+
+		// Merge the nodes of the tree, in order, with new nodes for the keys
+		Node[] nodes = new Node[size + sortedKeys.length];
+		int count = 0;
+		int i = 0;
+		Node currentRoot = root == null ? null : minimumNode(root);
+		while(currentRoot != null || i < sortedKeys.length) {
+			if(i == sortedKeys.length
+			   || (currentRoot != null && currentRoot.value <= sortedKeys[i])) {
+				if(i < sortedKeys.length && currentRoot.value == sortedKeys[i]) {
+					i++;
+				}
+				nodes[count++] = currentRoot;
+				currentRoot = successor(currentRoot);
 			}
 			else {
-				currentRoot.right = node;
-
-				return true;
+				if(count == 0 || nodes[count - 1].value != sortedKeys[i]) {
+					nodes[count++] = new Node(sortedKeys[i]);
+				}
+				i++;
 			}
 		}
 
-		return false;
+		if(count == size) {
+			return false;
+		}
+
+		root = build(nodes, 0, count, null);
+		size = count;
+
+		return true;
+	}
+
+	/**
+	 * Links a range of nodes, in order, into a perfectly balanced subtree.
+	 * 
+	 * The recursion is only as deep as the subtree it builds, which is
+	 * log2 of the number of nodes.
+	 * 
+	 * @param nodes The nodes, in ascending order of their values.
+	 * @param from The index of the first node of the subtree.
+	 * @param to The index after the last node of the subtree.
+	 * @param parent The parent of the subtree, or null for the root.
+	 * 
+	 * @return The root of the subtree, or null if the range is empty.
+	 */
+	private Node build(Node[] nodes, int from, int to, Node parent) {
+		if(from >= to) {
+			return null;
+		}
+
+		int middle = (from + to) >>> 1;
+		Node currentRoot = nodes[middle];
+		currentRoot.parent = parent;
+		currentRoot.left = build(nodes, from, middle, currentRoot);
+		currentRoot.right = build(nodes, middle + 1, to, currentRoot);
+		updateLevel(currentRoot);
+
+		return currentRoot;
+	}
+
+	/**
+	 * Returns the node that follows a node in order, using the parent links.
+	 * 
+	 * @param currentRoot The node whose successor is returned.
+	 * 
+	 * @return The node with the next larger value, or null if there is none.
+	 */
+	private Node successor(Node currentRoot) {
+		if(currentRoot.right != null) {
+			return minimumNode(currentRoot.right);
+		}
+
+		while(currentRoot.parent != null && currentRoot.parent.right == currentRoot) {
+			currentRoot = currentRoot.parent;
+		}
+
+		return currentRoot.parent;
+	}
+
+	/**
+	 * Returns the number of elements in the tree.
+	 * 
+	 * @return The number of elements in the tree.
+	 */
+	public int size() {
+		return size;
 	}
 
 	/**
@@ -168,19 +383,28 @@ public class BinarySearchTree {
 	 * @return True if the value is present; false otherwise.
 	 */
 	public boolean contains(int value, Node currentRoot) {
-		if(currentRoot == null) {
-			return false;
-		}
+		return findNode(value, currentRoot) != null;
+	}
 
-		if(value == currentRoot.value) {
-			return true;
-		}
-		else if(value < currentRoot.value) {
-			return contains(value, currentRoot.left);
-		}
-		else {
-			return contains(value, currentRoot.right);
+	/**
+	 * Returns the node holding a value in the subtree rooted at currentRoot.
+	 * 
+	 * @param value The value being looked for.
+	 * @param currentRoot The root of the subtree being searched.
+	 * 
+	 * @return The node holding the value, or null if the value is not present.
+	 */
+	private Node findNode(int value, Node currentRoot) {
+		while(currentRoot != null && value != currentRoot.value) {
+			if(value < currentRoot.value) {
+				currentRoot = currentRoot.left;
+			}
+			else {
+				currentRoot = currentRoot.right;
+			}
 		}
+
+		return currentRoot;
 	}
 
 	/**
@@ -208,8 +432,8 @@ public class BinarySearchTree {
 	 *         rooted at currentRoot.
 	 */
 	private Node minimumNode(Node currentRoot) {
-		if(currentRoot.left != null) {
-			return minimumNode(currentRoot.left);
+		while(currentRoot.left != null) {
+			currentRoot = currentRoot.left;
 		}
 
 		return currentRoot;
@@ -240,8 +464,8 @@ public class BinarySearchTree {
 	 *         rooted at currentRoot.
 	 */
 	private Node maximumNode(Node currentRoot) {
-		if(currentRoot.right != null) {
-			return maximumNode(currentRoot.right);
+		while(currentRoot.right != null) {
+			currentRoot = currentRoot.right;
 		}
 
 		return currentRoot;
@@ -255,87 +479,50 @@ public class BinarySearchTree {
 	 * @return True if the value was removed; false if the value was not found.
 	 */
 	public boolean remove(int value) {
-		
-		return remove(value, root, null);
-	}
-
-	/**
-	 * Removes an element from the tree.
-	 * 
-	 * @param value Value to be removed from the tree.
-	 * @param currentRoot Root of the current subtree where we're removing the value.
-	 * @param currentParent Parent of the currentRoot (null if currentRoot is the root).
-	 * 
-	 * @return True if the value was removed; false if the value was not found.
-	 */
-	private boolean remove(int value, Node currentRoot, Node currentParent) {
-
+		Node currentRoot = findNode(value, root);
 		if(currentRoot == null) {
 			return false;
 		}
-		else if(value < currentRoot.value) {
-			
-			boolean result = remove(value, currentRoot.left, currentRoot);
-			
-			return result;
-		}
-		else if(value > currentRoot.value) {
-			boolean result = remove(value, currentRoot.right, currentRoot);
-			
-			return result;
-		}
 
-		// When value == currentRoot.value...
+		// A node with two children takes the value of its successor,
+		// which has no left child, and the successor is removed instead
 
 		if(currentRoot.left != null && currentRoot.right != null) {
-			int min = minimumNode(currentRoot.right).value;
-
-			// This will always succeed because you know
-			// that the element to be removed is present
-
-			remove(min, currentRoot.right, currentRoot);
-
-			currentRoot.value = min;
-
-			return true;
+			Node successor = minimumNode(currentRoot.right);
+			currentRoot.value = successor.value;
+			currentRoot = successor;
 		}
 
 		Node child;
 
 		if(currentRoot.left != null) {
 			child = currentRoot.left;
-			
 		}
 		else {
 			child = currentRoot.right;
-			
 		}
-		
+
+		Node currentParent = currentRoot.parent;
+		if(child != null) {
+			child.parent = currentParent;
+		}
+
 		if(currentParent == null) {
-			
 			root = child;
 		}
+		else if(currentParent.left == currentRoot) {
+			currentParent.left = child;
+		}
 		else {
-			if (child != null){
-				child.parent = currentParent;
-				
-			}
-			updateLevel(currentParent);
-			
-			if(currentParent.left == currentRoot) {
-				
-				currentParent.left = child;
-			}
-			else {
-				
-				currentParent.right = child;
-			}
+			currentParent.right = child;
 		}
-		
 
 		// Note that if both children were null,
 		// the part above works too!
 
+		size--;
+		rebalanceUpward(currentParent);
+
 		return true;
 	}
 
@@ -369,24 +556,92 @@ public class BinarySearchTree {
 	 */
 	 
 	private boolean testParentLinks(Node currentRoot) {
-		if(currentRoot == null) {
-			return true;
+		Deque<Node> pending = new ArrayDeque<Node>();
+		if(currentRoot != null) {
+			pending.push(currentRoot);
 		}
 
-		if(currentRoot.left != null) {
-			if(currentRoot.left.parent != currentRoot || !testParentLinks(currentRoot.left)) {
-				return false;
+		while(!pending.isEmpty()) {
+			currentRoot = pending.pop();
+
+			if(currentRoot.left != null) {
+				if(currentRoot.left.parent != currentRoot) {
+					return false;
+				}
+				pending.push(currentRoot.left);
+			}
+
+			if(currentRoot.right != null) {
+				if(currentRoot.right.parent != currentRoot) {
+					return false;
+				}
+				pending.push(currentRoot.right);
 			}
 		}
 
-		if(currentRoot.right != null) {
-			if(currentRoot.right.parent != currentRoot || !testParentLinks(currentRoot.right)) {
+		return true;
+	} 
+
+	/**
+	 * Returns true if and only if the levels of all nodes are correct and,
+	 * if the tree is balanced, no node has a height skew above one.
+	 * 
+	 * @return True iff the levels and skews of all nodes are correct.
+	 */
+	private boolean testLevels() {
+		// Checking every node against its children is enough, since
+		// the levels are then right from the leaves up
+		Deque<Node> pending = new ArrayDeque<Node>();
+		if(root != null) {
+			pending.push(root);
+		}
+
+		while(!pending.isEmpty()) {
+			Node currentRoot = pending.pop();
+			int left = level(currentRoot.left);
+			int right = level(currentRoot.right);
+			if(currentRoot.level != 1 + Math.max(left, right)
+			   || (balanced && Math.abs(right - left) > 1)) {
 				return false;
 			}
+
+			if(currentRoot.left != null) {
+				pending.push(currentRoot.left);
+			}
+			if(currentRoot.right != null) {
+				pending.push(currentRoot.right);
+			}
 		}
 
 		return true;
-	} 
+	}
+
+	/**
+	 * Inserts the keys into a new tree and prints the depth it ends up with
+	 * and the time the insertions took.
+	 * 
+	 * @param workload The name of the insertion order.
+	 * @param keys The keys, in the order they are inserted.
+	 * @param balanced True to build a balanced tree.
+	 */
+	private static void benchmarkDepth(String workload, int[] keys, boolean balanced) {
+		BinarySearchTree tree = new BinarySearchTree(balanced);
+		long start = System.nanoTime();
+		for(int key : keys) {
+			tree.add(key);
+		}
+		long nanos = System.nanoTime() - start;
+
+		boolean found = true;
+		for(int key : keys) {
+			found &= tree.contains(key);
+		}
+
+		System.out.printf("%-8s %-10s n=%-7d depth=%-5d log2(n)=%5.1f %9.1f ns/add  valid=%b%n",
+		                  balanced ? "avl" : "plain", workload, keys.length, tree.root.level,
+		                  Math.log(keys.length) / Math.log(2), (double) nanos / keys.length,
+		                  found && tree.testParentLinks() && tree.testLevels());
+	}
 	
     
     /**
@@ -489,5 +744,85 @@ public class BinarySearchTree {
 		System.out.println("Removing 11:" + tree.remove(11));
 		tree.printTree();
 		System.out.println(tree.testParentLinks());
+
+		// Depth under sorted, reverse-sorted and random insertion orders; the
+		// plain tree is only built for small sizes, since on sorted keys every
+		// add walks the whole tree
+		Random random = new Random(221);
+		for(int n : new int[] {1 << 10, 1 << 15, 1 << 20}) {
+			int[] sorted = new int[n];
+			int[] reversed = new int[n];
+			for(int i = 0; i < n; i++) {
+				sorted[i] = i;
+				reversed[i] = n - 1 - i;
+			}
+			int[] shuffled = sorted.clone();
+			for(int i = n - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int swap = shuffled[i];
+				shuffled[i] = shuffled[j];
+				shuffled[j] = swap;
+			}
+
+			for(boolean balanced : new boolean[] {false, true}) {
+				if(!balanced && n > 1 << 15) {
+					continue;
+				}
+				benchmarkDepth("sorted", sorted, balanced);
+				benchmarkDepth("reversed", reversed, balanced);
+				benchmarkDepth("random", shuffled, balanced);
+			}
+		}
+
+		// Loading sorted keys one at a time against addAll, into an empty
+		// tree and into a tree that already holds the odd keys; the best of
+		// a few rounds is printed, since collecting the nodes of earlier
+		// rounds adds a lot of noise
+		int n = 1 << 20;
+		int[] odd = new int[n];
+		int[] even = new int[n];
+		for(int i = 0; i < n; i++) {
+			odd[i] = 2 * i + 1;
+			even[i] = 2 * i;
+		}
+		for(boolean bulk : new boolean[] {false, true}) {
+			long loadNanos = Long.MAX_VALUE;
+			long mergeNanos = Long.MAX_VALUE;
+			boolean valid = true;
+			for(int round = 0; round < 5; round++) {
+				BinarySearchTree loaded = new BinarySearchTree();
+				long start = System.nanoTime();
+				if(bulk) {
+					loaded.addAll(odd);
+				}
+				else {
+					for(int key : odd) {
+						loaded.add(key);
+					}
+				}
+				loadNanos = Math.min(loadNanos, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				if(bulk) {
+					loaded.addAll(even);
+				}
+				else {
+					for(int key : even) {
+						loaded.add(key);
+					}
+				}
+				mergeNanos = Math.min(mergeNanos, System.nanoTime() - start);
+
+				valid &= loaded.size() == 2 * n && loaded.minimumValue() == 0
+				         && loaded.maximumValue() == 2 * n - 1
+				         && loaded.testParentLinks() && loaded.testLevels();
+				for(int i = 0; i < 2 * n; i += 997) {
+					valid &= loaded.contains(i);
+				}
+			}
+			System.out.printf("%-7s load n=%d %7.1f ms  merge n=%d %7.1f ms  valid=%b%n",
+			                  bulk ? "addAll" : "add", n, loadNanos / 1e6, n, mergeNanos / 1e6,
+			                  valid);
+		}
 	}
 }
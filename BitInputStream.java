@@ -1,17 +1,28 @@
-
 import java.io.*;
 
 /** Utility class for reading individual bits from a file.
+  * 
+  * The file is read BUFFER_SIZE bytes at a time into a byte buffer, and bits
+  * are served from a 64-bit window that is refilled from that buffer, so
+  * reading a bit takes a shift and a mask rather than a call to the file.
+  * The input is only read again when a call needs more bits than have
+  * arrived, so on a pipe or socket every bit that has been received can be
+  * read without waiting for the ones after it.
   * 
   * @author Stuart Reges
   * @author RR
   */
 public class BitInputStream {
-    private FileInputStream input; // the input stream
-    private int digits;     // next set of digits (buffer)
-    private int numDigits;  // how many digits from buffer have been used
+    private InputStream input; // the input stream
+    private long digits;    // digits read but not yet used, next digit lowest
+    private int numDigits;  // how many digits are in the digits window
+    private byte[] buffer;  // bytes read from the input but not yet in digits
+    private int position;   // index of the next unused byte in buffer
+    private int limit;      // number of valid bytes in buffer, or EOF
 
     private static final int BYTE_SIZE = 8;  // digits per byte
+    private static final int MAX_PEEK = 56;  // most digits that can be peeked at
+    private static final int BUFFER_SIZE = 1 << 16; // bytes in the byte buffer
     private static final int EOF = -1; // end-of-file marker
     
     
@@ -26,7 +37,21 @@ public class BitInputStream {
         } catch (IOException e) {
             throw new RuntimeException(e.toString());
         }
-        nextByte();
+        digits = numDigits = 0;
+        buffer = new byte[BUFFER_SIZE];
+        position = limit = 0;
+    }
+
+    
+    /** Constructs a BitInputStream that reads input from the specified stream.
+      * 
+      * @param input the stream to be read from; it is closed along with this.
+      */
+    public BitInputStream(InputStream input) {
+        this.input = input;
+        digits = numDigits = 0;
+        buffer = new byte[BUFFER_SIZE];
+        position = limit = 0;
     }
 
     
@@ -37,28 +62,139 @@ public class BitInputStream {
       * @return the next bit read from the input stream.
       */
     public int readBit() {
-        if (digits == EOF)
-            return EOF;
-        int result = digits % 2;
-        digits /= 2;
-        numDigits++;
-        if (numDigits == BYTE_SIZE)
-            nextByte();
+        if (numDigits == 0) {
+            fill(1);
+            if (numDigits == 0)
+                return EOF;
+        }
+        int result = (int) digits & 1;
+        digits >>>= 1;
+        numDigits--;
         return result;
     }
 
 
-    /** Refreshes the internal buffer with the next BYTE_SIZE bits.
+    /** Returns the next count bits read from the input stream.
+      * 
+      * The first bit read is the lowest bit of the result. A special value of
+      * -1 indicates that the end of file was reached before count bits could
+      * be read; the bits that were left are consumed regardless.
+      * 
+      * @param count the number of bits to read, from 0 to 56.
+      * @return the next count bits read from the input stream.
+      */
+    public long readBits(int count) {
+        if (numDigits < count) {
+            fill(count);
+            if (numDigits < count) {
+                skipBits(count);
+                return EOF;
+            }
+        }
+        long result = digits & ((1L << count) - 1);
+        skipBits(count);
+        return result;
+    }
+
+
+    /** Returns the next count bits of the input stream without consuming them.
+      * 
+      * The first bit to be read is the lowest bit of the result. Bits past the
+      * end of the file read as 0s, and a special value of -1 indicates that
+      * there are no bits left at all.
+      * 
+      * @param count the number of bits to look at, at most 31.
+      * @return the next count bits of the input stream.
+      */
+    public int peekBits(int count) {
+        if (numDigits < count) {
+            fill(count);
+            if (numDigits == 0)
+                return EOF;
+        }
+        return (int) (digits & ((1L << count) - 1));
+    }
+
+
+    /** Consumes the next count bits of the input stream.
+      * 
+      * @param count the number of bits to skip, at most the number of bits last
+      *        peeked at.
+      */
+    public void skipBits(int count) {
+        if (count >= numDigits) {
+            digits = 0;
+            numDigits = 0;
+        } else {
+            digits >>>= count;
+            numDigits -= count;
+        }
+    }
+
+
+    /** Consumes the bits up to the next byte boundary of the input stream.
+      */
+    public void skipToByte() {
+        // The window only ever takes whole bytes, so the bits left of the
+        // current byte are those above a multiple of BYTE_SIZE
+        skipBits(numDigits % BYTE_SIZE);
+    }
+
+
+    /** Returns the number of bits that can be read without reading the input
+      * stream again, which on a pipe or socket may be waiting for data.
+      * 
+      * @return the number of bits that have been received but not yet read.
+      */
+    public int bitsReady() {
+        return numDigits + BYTE_SIZE * Math.max(limit - position, 0);
+    }
+
+
+    /** Refreshes the digits window with as many whole bytes of the byte buffer
+      * as fit, reading the input stream only while the window holds fewer than
+      * needed bits and the end of file has not been reached.
+      * 
+      * @param needed the number of bits the caller is waiting for.
+      * @throws RuntimeException if the input stream cannot be read.
+      */
+    private void fill(int needed) {
+        if (limit - position >= Long.BYTES && numDigits <= MAX_PEEK) {
+            // common case: load a whole word and keep the bytes that fit
+            long word = 0;
+            for (int i = Long.BYTES - 1; i >= 0; i--)
+                word = (word << BYTE_SIZE) | (buffer[position + i] & 0xFF);
+            int bytes = (Long.SIZE - numDigits) / BYTE_SIZE;
+            int total = numDigits + bytes * BYTE_SIZE;
+            digits |= (word << numDigits) & (-1L >>> (Long.SIZE - total));
+            numDigits = total;
+            position += bytes;
+            return;
+        }
+        while (numDigits <= MAX_PEEK) {
+            if (position >= limit && (numDigits >= needed || !nextBuffer()))
+                return;
+            digits |= (long) (buffer[position++] & 0xFF) << numDigits;
+            numDigits += BYTE_SIZE;
+        }
+    }
+
+
+    /** Refreshes the byte buffer with the next BUFFER_SIZE bytes of the file.
       * 
+      * @return false if the end of file has been reached.
       * @throws RuntimeException if the input stream cannot be read.
       */
-    private void nextByte() {
+    private boolean nextBuffer() {
+        if (limit == EOF)
+            return false;
         try {
-            digits = input.read();
+            limit = input.read(buffer);
         } catch (IOException e) {
             throw new RuntimeException(e.toString());
         }
-        numDigits = 0;
+        position = 0;
+        return limit > 0;
     }
 
     
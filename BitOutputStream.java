@@ -1,4 +1,3 @@
-
 import java.io.*;
 
 /** Utility class for writing individual bits to a file in a compact form.
@@ -6,16 +5,25 @@ import java.io.*;
   * The resulting file will always have a file size that is a multiple of 8 
   * (due to byte alignment, data is padded to bring it up to a whole byte).
   * 
+  * Bits are collected in a 64-bit buffer and whole words of it are copied into
+  * a large byte buffer, so the file is only written once per BUFFER_SIZE bytes.
+  * 
   * @author Stuart Reges
   * @author RR
   */
 public class BitOutputStream {
     
-    private FileOutputStream output; // the output stream
-    private int digits;     // a buffer used to build up next set of digits
+    private OutputStream output; // the output stream
+    private long digits;    // a buffer used to build up next set of digits
     private int numDigits;  // how many digits are currently in the buffer
+    private byte[] buffer;  // whole bytes waiting to be written to the output
+    private int numBytes;   // how many bytes are currently in buffer
+    private long written;   // how many bytes have been written to the output
+    private boolean closed; // whether the output stream has been closed
 
     private static final int BYTE_SIZE = 8;  // digits per byte
+    private static final int WORD_SIZE = 64; // digits in the digits buffer
+    private static final int BUFFER_SIZE = 1 << 16; // bytes in the byte buffer
 
     
     /** Constructs a BitOutputStream that sends output to the specified file.
@@ -30,6 +38,18 @@ public class BitOutputStream {
             throw new RuntimeException(e.toString());
         }
         digits = numDigits = 0;
+        buffer = new byte[BUFFER_SIZE];
+    }
+
+    
+    /** Constructs a BitOutputStream that sends output to the specified stream.
+      * 
+      * @param output the stream to be written to; it is closed along with this.
+      */
+    public BitOutputStream(OutputStream output) {
+        this.output = output;
+        digits = numDigits = 0;
+        buffer = new byte[BUFFER_SIZE];
     }
 
     
@@ -41,39 +61,121 @@ public class BitOutputStream {
     public void writeBit(int bit) {
         if (bit < 0 || bit > 1)
             throw new IllegalArgumentException("Illegal bit: " + bit);
-        digits += bit << numDigits;
-        numDigits++;
-        if (numDigits == BYTE_SIZE)
-            flush();
+        writeBits(bit, 1);
+    }
+
+    
+    /** Writes the lowest count bits of the supplied value to the output.
+      * 
+      * The lowest bit is written first, so writeBits(bits, count) produces the
+      * same output as count calls to writeBit, one for each bit of bits starting
+      * from the lowest.
+      * 
+      * @param bits the bits to be written; bits above the lowest count are ignored.
+      * @param count the number of bits to write, from 0 to 64.
+      * @throws IllegalArgumentException if count is out of range.
+      */
+    public void writeBits(long bits, int count) {
+        if (count < 0 || count > WORD_SIZE)
+            throw new IllegalArgumentException("Illegal bit count: " + count);
+        if (count == 0)
+            return;
+        bits &= -1L >>> (WORD_SIZE - count);
+        digits |= bits << numDigits;
+        int total = numDigits + count;
+        if (total < WORD_SIZE) {
+            numDigits = total;
+            return;
+        }
+        // the digits buffer is full: move it out and keep the leftover bits
+        writeWord(digits);
+        digits = numDigits == 0 ? 0 : bits >>> (WORD_SIZE - numDigits);
+        numDigits = total - WORD_SIZE;
     }
 
     
-    /** Flushes the buffer.
+    /** Copies a full digits buffer into the byte buffer, first digits first.
       * 
-      * If numDigits < BYTE_SIZE, this will effectively pad the output with 0s,
-      * so this should be called only when numDigits == BYTE_SIZE, or when we
-      * are closing the output stream.
+      * @param word the 64 digits to be copied.
+      */
+    private void writeWord(long word) {
+        if (numBytes + Long.BYTES > buffer.length)
+            writeBuffer();
+        for (int i = 0; i < Long.BYTES; i++) {
+            buffer[numBytes++] = (byte) word;
+            word >>>= BYTE_SIZE;
+        }
+    }
+
+    
+    /** Writes out every whole byte written so far and flushes the output.
+      * 
+      * Up to 7 digits that do not yet make up a whole byte stay buffered until
+      * more digits are written or the stream is closed, so a caller whose
+      * reader must see every digit pads to a whole byte first.
       * 
       * @throws RuntimeException if the output file cannot be written to.
       */
-    private void flush() {
+    public void flush() {
+        if (numBytes + Long.BYTES > buffer.length)
+            writeBuffer();
+        while (numDigits >= BYTE_SIZE) {
+            buffer[numBytes++] = (byte) digits;
+            digits >>>= BYTE_SIZE;
+            numDigits -= BYTE_SIZE;
+        }
+        writeBuffer();
         try {
-            output.write(digits);
+            output.flush();
         } catch (IOException e) {
             throw new RuntimeException(e.toString());
         }
-        digits = 0;
-        numDigits = 0;
+    }
+
+    
+    /** Writes the byte buffer to the output file.
+      * 
+      * @throws RuntimeException if the output file cannot be written to.
+      */
+    private void writeBuffer() {
+        try {
+            output.write(buffer, 0, numBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+        written += numBytes;
+        numBytes = 0;
+    }
+
+    
+    /** Returns the number of bits written to this stream so far, which is the
+      * bit offset in the output at which the next bit will be written.
+      * 
+      * @return the number of bits written.
+      */
+    public long bitsWritten() {
+        return (written + numBytes) * BYTE_SIZE + numDigits;
     }
 
     
     /** Flushes and closes the output stream.
+      * 
+      * Any digits left in the digits buffer are padded with 0s to a whole byte.
       * 
       * @throws RuntimeException if the stream cannot be closed.
       */
     public void close() {
-        if (numDigits > 0)
-            flush();
+        if (closed)
+            return;
+        closed = true;
+        if (numBytes + Long.BYTES > buffer.length)
+            writeBuffer();
+        while (numDigits > 0) {
+            buffer[numBytes++] = (byte) digits;
+            digits >>>= BYTE_SIZE;
+            numDigits -= Math.min(numDigits, BYTE_SIZE);
+        }
+        writeBuffer();
         try {
             output.close();
         } catch (IOException e) {
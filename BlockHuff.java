@@ -0,0 +1,176 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Compresses files into a container of independently encoded blocks.
+  *
+  * A single set of canonical codes is built from the whole file, but every
+  * block of blockSize input bytes is encoded into its own byte-aligned
+  * bitstream, so blocks can be encoded and decoded on all cores at once and
+  * any block can be decoded without touching the ones before it. The file
+  * layout, with all numbers little-endian, is:
+  *
+  *   header  MAGIC, block size (int), input length (long) and the code
+  *           lengths, padded to a whole byte
+  *   blocks  the encoded blocks, one after another, without pseudo-EOFs
+  *   index   the encoded size of each block (int)
+  *   footer  offset of the index (long), number of blocks (int), MAGIC
+  *
+  * BlockHuffReader reads the index back to decode blocks or arbitrary ranges.
+  */
+public class BlockHuff {
+
+    public static final int MAGIC = 0x42465548;         // "HUFB" in file order
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20; // input bytes per block
+    static final int FOOTER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+
+
+    /** Compresses the input file into the output file.
+      *
+      * @param inputFileName the name of the file to be compressed.
+      * @param outputFileName the name of the container file to be written.
+      * @param blockSize the number of input bytes per block; a power of two no
+      *        larger than the size of a mapped piece of the input.
+      * @throws IOException if either file cannot be opened.
+      * @throws IllegalArgumentException if blockSize is not valid.
+      */
+    public static void compress(String inputFileName, String outputFileName,
+                                int blockSize) throws IOException {
+        if (blockSize <= 0 || Integer.bitCount(blockSize) != 1 || blockSize > Huff.MAP_SIZE)
+            throw new IllegalArgumentException("Illegal block size: " + blockSize);
+
+        // Build one set of canonical codes for the whole file
+        ByteBuffer[] input = Huff.mapFile(inputFileName);
+        long length = 0;
+        for (ByteBuffer buffer : input)
+            length += buffer.remaining();
+        int[] lengths = HuffmanTree.codeLengths(FrequencyCounter.count(input),
+                                                HuffmanTree.DEFAULT_MAX_LENGTH);
+        long[] codes = HuffmanTree.canonicalCodes(lengths);
+
+        // Write the header
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFileName));
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        BitOutputStream header = new BitOutputStream(headerBytes);
+        header.writeBits(MAGIC, Integer.SIZE);
+        header.writeBits(blockSize, Integer.SIZE);
+        header.writeBits(length, Long.SIZE);
+        HuffmanTree.writeCodeLengths(header, lengths);
+        header.close();
+        headerBytes.writeTo(output);
+        long offset = headerBytes.size();
+
+        // Encode the blocks a batch at a time, so that only a few encoded blocks
+        // are held in memory, and write them in order
+        int blockCount = (int) ((length + blockSize - 1) / blockSize);
+        int blocksPerPiece = Huff.MAP_SIZE / blockSize;
+        int[] blockSizes = new int[blockCount];
+        int batchSize = 2 * ForkJoinPool.commonPool().getParallelism();
+        for (int first = 0; first < blockCount; first += batchSize) {
+            List<Callable<byte[]>> batch = new ArrayList<Callable<byte[]>>();
+            for (int i = first; i < Math.min(first + batchSize, blockCount); i++) {
+                final ByteBuffer buffer = input[i / blocksPerPiece];
+                final int from = (i % blocksPerPiece) * blockSize;
+                final int to = Math.min(from + blockSize, buffer.limit());
+                batch.add(new Callable<byte[]>() {
+                    public byte[] call() {
+                        ByteArrayOutputStream block = new ByteArrayOutputStream(to - from);
+                        BitOutputStream bits = new BitOutputStream(block);
+                        Huff.encode(buffer, from, to, codes, lengths, bits);
+                        bits.close();
+                        return block.toByteArray();
+                    }
+                });
+            }
+            List<byte[]> blocks = invokeAll(batch);
+            for (int i = 0; i < blocks.size(); i++) {
+                blockSizes[first + i] = blocks.get(i).length;
+                output.write(blocks.get(i));
+                offset += blocks.get(i).length;
+            }
+        }
+
+        // Write the index and footer
+        ByteBuffer index = ByteBuffer.allocate(blockCount * Integer.BYTES + FOOTER_SIZE);
+        index.order(ByteOrder.LITTLE_ENDIAN);
+        for (int size : blockSizes)
+            index.putInt(size);
+        index.putLong(offset);
+        index.putInt(blockCount);
+        index.putInt(MAGIC);
+        output.write(index.array());
+        output.close();
+    }
+
+
+    /** Uncompresses the container in the input file into the output file,
+      * decoding the blocks on all cores at once.
+      *
+      * Unlike the pseudo-EOF terminated formats, the output holds exactly the
+      * original bytes.
+      *
+      * @param inputFileName the name of the container file to be read.
+      * @param outputFileName the name of the file to be written.
+      * @throws IOException if either file cannot be opened.
+      */
+    public static void decompress(String inputFileName, String outputFileName)
+        throws IOException {
+        BlockHuffReader reader = new BlockHuffReader(inputFileName);
+        OutputStream output = new FileOutputStream(outputFileName);
+        int batchSize = 2 * ForkJoinPool.commonPool().getParallelism();
+        for (int first = 0; first < reader.blockCount(); first += batchSize) {
+            List<Callable<byte[]>> batch = new ArrayList<Callable<byte[]>>();
+            for (int i = first; i < Math.min(first + batchSize, reader.blockCount()); i++) {
+                final int block = i;
+                batch.add(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return reader.readBlock(block);
+                    }
+                });
+            }
+            for (byte[] block : invokeAll(batch))
+                output.write(block);
+        }
+        output.close();
+        reader.close();
+    }
+
+
+    /** Runs the supplied tasks on the common pool and returns their results in
+      * order.
+      *
+      * @param tasks the tasks to be run.
+      * @throws IOException if a task failed with an IOException.
+      * @return the results of the tasks.
+      */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        return invokeAll(ForkJoinPool.commonPool(), tasks);
+    }
+
+
+    /** Runs the supplied tasks on the supplied pool and returns their results
+      * in order.
+      *
+      * @param pool the pool that runs the tasks.
+      * @param tasks the tasks to be run.
+      * @throws IOException if a task failed with an IOException.
+      * @return the results of the tasks.
+      */
+    static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> tasks)
+        throws IOException {
+        List<T> results = new ArrayList<T>();
+        try {
+            for (Future<T> result : pool.invokeAll(tasks))
+                results.add(result.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.toString());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause().toString());
+        }
+        return results;
+    }
+}
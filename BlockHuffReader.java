@@ -0,0 +1,187 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/** Random access reader for containers written by BlockHuff.
+  *
+  * The reader loads the header and block index once; after that any block,
+  * or any range of the original file, can be decoded by reading only the
+  * blocks that hold it. A single reader may be used from several threads.
+  */
+public class BlockHuffReader {
+
+    private static final int CHAR_MAX = 256;
+    private static final int MAX_HEADER_SIZE = 512; // bytes, covering all code lengths
+
+    private FileChannel channel;    // the container file
+    private int blockSize;          // input bytes per block
+    private long length;            // length of the original file
+    private long[] blockOffsets;    // offset of each block, then of the index
+    private HuffmanDecoder decoder; // decoder for the codes of the container
+
+
+    /** Opens the specified container and reads its header and index.
+      *
+      * The footer, header and index are checked against each other and
+      * against the size of the file before anything is allocated from them,
+      * so a corrupt or truncated container fails here with an IOException.
+      *
+      * @param fileName the name of the container file.
+      * @throws IOException if the file cannot be read or is not a container.
+      */
+    public BlockHuffReader(String fileName) throws IOException {
+        channel = FileChannel.open(Paths.get(fileName));
+        try {
+            readIndex(fileName);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /** Reads the footer, header and index of the container.
+      *
+      * @param fileName the name of the container file, for error messages.
+      * @throws IOException if the file cannot be read or is not a container.
+      */
+    private void readIndex(String fileName) throws IOException {
+        // Read the footer; the index it points to must end where the footer starts
+        long size = channel.size();
+        if (size < BlockHuff.FOOTER_SIZE)
+            throw new IOException("Not a block Huffman file: " + fileName);
+        ByteBuffer footer = readBytes(size - BlockHuff.FOOTER_SIZE, BlockHuff.FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        int blockCount = footer.getInt();
+        if (footer.getInt() != BlockHuff.MAGIC)
+            throw new IOException("Not a block Huffman file: " + fileName);
+        if (indexOffset < 0 || blockCount < 0
+            || indexOffset + (long) blockCount * Integer.BYTES != size - BlockHuff.FOOTER_SIZE)
+            throw new IOException("Corrupt block Huffman index: " + fileName);
+        ByteBuffer index = readBytes(indexOffset, blockCount * Integer.BYTES);
+
+        // Read the header, which is never longer than MAX_HEADER_SIZE bytes
+        ByteBuffer headerBytes = readBytes(0, (int) Math.min(indexOffset, MAX_HEADER_SIZE));
+        ByteArrayInputStream headerInput =
+            new ByteArrayInputStream(headerBytes.array(), 0, headerBytes.limit());
+        BitInputStream header = new BitInputStream(headerInput);
+        if ((int) header.readBits(Integer.SIZE) != BlockHuff.MAGIC)
+            throw new IOException("Not a block Huffman file: " + fileName);
+        blockSize = (int) header.readBits(Integer.SIZE);
+        length = header.readBits(Integer.SIZE) | header.readBits(Integer.SIZE) << Integer.SIZE;
+        if (blockSize <= 0 || Integer.bitCount(blockSize) != 1 || length < 0
+            || (length + blockSize - 1) / blockSize != blockCount)
+            throw new IOException("Corrupt block Huffman header: " + fileName);
+        try {
+            int[] lengths = HuffmanTree.readCodeLengths(header, CHAR_MAX + 1);
+            decoder = new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage() + ": " + fileName);
+        }
+
+        // The first block starts right after the header, which is padded to a
+        // whole byte; the index starts right after the last block, so the
+        // blocks must exactly fill the space between the header and the index
+        long headerSize = headerBytes.limit() - headerInput.available() - header.bitsReady() / 8;
+        blockOffsets = new long[blockCount + 1];
+        blockOffsets[blockCount] = indexOffset;
+        for (int i = blockCount - 1; i >= 0; i--) {
+            int blockLength = index.getInt(i * Integer.BYTES);
+            if (blockLength < 0)
+                throw new IOException("Corrupt block Huffman index: " + fileName);
+            blockOffsets[i] = blockOffsets[i + 1] - blockLength;
+        }
+        if (blockOffsets[0] != headerSize)
+            throw new IOException("Corrupt block Huffman index: " + fileName);
+    }
+
+
+    /** Returns the length of the original file.
+      *
+      * @return the number of bytes in the uncompressed file.
+      */
+    public long length() {
+        return length;
+    }
+
+
+    /** Returns the number of blocks in the container.
+      *
+      * @return the number of blocks.
+      */
+    public int blockCount() {
+        return blockOffsets.length - 1;
+    }
+
+
+    /** Decodes a single block.
+      *
+      * @param block the index of the block, from 0 to blockCount() - 1.
+      * @throws IOException if the block cannot be read.
+      * @return the original bytes of the block.
+      */
+    public byte[] readBlock(int block) throws IOException {
+        ByteBuffer compressed = readBytes(blockOffsets[block],
+                                          (int) (blockOffsets[block + 1] - blockOffsets[block]));
+        byte[] result = new byte[(int) Math.min(blockSize, length - (long) block * blockSize)];
+        BitInputStream input = new BitInputStream(
+            new ByteArrayInputStream(compressed.array(), 0, compressed.limit()));
+        decoder.decode(input, result, 0, result.length);
+        return result;
+    }
+
+
+    /** Decodes a range of the original file, reading only the blocks that
+      * hold it.
+      *
+      * @param offset the offset of the first byte of the range.
+      * @param count the number of bytes in the range.
+      * @throws IOException if a block cannot be read.
+      * @throws IndexOutOfBoundsException if the range is not within the file.
+      * @return the original bytes of the range.
+      */
+    public byte[] read(long offset, int count) throws IOException {
+        if (offset < 0 || count < 0 || offset + count > length)
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + count
+                                                + " outside 0.." + length);
+        byte[] result = new byte[count];
+        int copied = 0;
+        while (copied < count) {
+            long position = offset + copied;
+            byte[] block = readBlock((int) (position / blockSize));
+            int start = (int) (position % blockSize);
+            int n = Math.min(block.length - start, count - copied);
+            System.arraycopy(block, start, result, copied, n);
+            copied += n;
+        }
+        return result;
+    }
+
+
+    /** Reads count bytes of the container starting at the supplied position.
+      *
+      * @param position the offset of the first byte to be read.
+      * @param count the number of bytes to be read.
+      * @throws IOException if the bytes cannot be read.
+      * @return a little-endian buffer holding the bytes.
+      */
+    private ByteBuffer readBytes(long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Block Huffman file is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    /** Closes the container file.
+      *
+      * @throws IOException if the file cannot be closed.
+      */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
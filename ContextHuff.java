@@ -0,0 +1,175 @@
+import java.io.*;
+import java.nio.*;
+
+/** Compresses files with order-1 context modelled Huffman coding.
+  *
+  * Instead of one set of codes for the whole file, every byte is coded with
+  * codes chosen by the byte before it, which on text often saves a fifth or
+  * more of the output. Contexts that are rare, or whose statistics are close
+  * to those of the whole file, are not worth the space their code lengths
+  * take up, so they are clustered into a single fallback context that shares
+  * one set of codes. All codes are canonical and limited to
+  * HuffmanTree.DEFAULT_MAX_LENGTH bits, so both ends use flat tables: the
+  * encoder looks codes up by context and byte, and the decoder keeps one
+  * HuffmanDecoder per context. The file layout is:
+  *
+  *   MAGIC and the input length (long), little-endian
+  *   one bit per context, set if it has its own codes
+  *   the code lengths of each context with its own codes, in order, followed
+  *   by those of the fallback context
+  *   the encoded bytes, without a pseudo-EOF, padded to a whole byte
+  *
+  * The first byte is coded in context 0.
+  */
+public class ContextHuff {
+
+    public static final int MAGIC = 0x4F465548; // "HUFO" in file order
+    private static final int CHAR_MAX = 256;
+    private static final int BUFFER_SIZE = 1 << 16; // bytes decoded before writing
+
+
+    /** Compresses the input file into the output file.
+      *
+      * @param inputFileName the name of the file to be compressed.
+      * @param outputFileName the name of the file to be written.
+      * @throws IOException if either file cannot be opened.
+      */
+    public static void compress(String inputFileName, String outputFileName)
+        throws IOException {
+        ByteBuffer[] input = Huff.mapFile(inputFileName);
+        long length = 0;
+        for (ByteBuffer buffer : input)
+            length += buffer.remaining();
+        long[] pairs = FrequencyCounter.countPairs(input);
+
+        // Code every context with the order-0 codes of the whole file, and
+        // give a context its own codes only if they save more bits than their
+        // code lengths take up
+        long[] total = new long[CHAR_MAX];
+        for (int i = 0; i < pairs.length; i++)
+            total[i % CHAR_MAX] += pairs[i];
+        int[] order0 = HuffmanTree.codeLengths(total, HuffmanTree.DEFAULT_MAX_LENGTH);
+        boolean[] own = new boolean[CHAR_MAX];
+        int[][] lengths = new int[CHAR_MAX][];
+        long[] fallback = new long[CHAR_MAX];
+        for (int context = 0; context < CHAR_MAX; context++) {
+            long[] count = new long[CHAR_MAX];
+            System.arraycopy(pairs, context * CHAR_MAX, count, 0, CHAR_MAX);
+            lengths[context] = HuffmanTree.codeLengths(count, HuffmanTree.DEFAULT_MAX_LENGTH);
+            long sharedBits = 0;
+            long ownBits = CHAR_MAX + HuffmanTree.LENGTH_BITS;
+            for (int n = 0; n < CHAR_MAX; n++) {
+                sharedBits += count[n] * order0[n];
+                ownBits += count[n] * lengths[context][n];
+                if (count[n] > 0)
+                    ownBits += HuffmanTree.LENGTH_BITS;
+            }
+            own[context] = ownBits < sharedBits;
+            if (!own[context]) {
+                for (int n = 0; n < CHAR_MAX; n++)
+                    fallback[n] += count[n];
+            }
+        }
+        int[] fallbackLengths = HuffmanTree.codeLengths(fallback, HuffmanTree.DEFAULT_MAX_LENGTH);
+        long[][] codes = new long[CHAR_MAX][];
+        long[] fallbackCodes = HuffmanTree.canonicalCodes(fallbackLengths);
+        for (int context = 0; context < CHAR_MAX; context++) {
+            if (own[context]) {
+                codes[context] = HuffmanTree.canonicalCodes(lengths[context]);
+            } else {
+                lengths[context] = fallbackLengths;
+                codes[context] = fallbackCodes;
+            }
+        }
+
+        // Write the header
+        BitOutputStream output = new BitOutputStream(outputFileName);
+        output.writeBits(MAGIC, Integer.SIZE);
+        output.writeBits(length, Long.SIZE);
+        for (int context = 0; context < CHAR_MAX; context++)
+            output.writeBits(own[context] ? 1 : 0, 1);
+        for (int context = 0; context < CHAR_MAX; context++) {
+            if (own[context])
+                HuffmanTree.writeCodeLengths(output, lengths[context]);
+        }
+        HuffmanTree.writeCodeLengths(output, fallbackLengths);
+
+        // Encode every byte with the codes of the byte before it
+        int previous = 0;
+        for (ByteBuffer buffer : input) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                int n = buffer.get(i) & 0xFF;
+                output.writeBits(codes[previous][n], lengths[previous][n]);
+                previous = n;
+            }
+        }
+        output.close();
+    }
+
+
+    /** Uncompresses the input file, as written by compress, into the output
+      * file.
+      *
+      * @param inputFileName the name of the file to be uncompressed.
+      * @param outputFileName the name of the file to be written.
+      * @throws IOException if either file cannot be opened, or the input is
+      *         not an order-1 file or is corrupt.
+      */
+    public static void decompress(String inputFileName, String outputFileName)
+        throws IOException {
+        BitInputStream input = new BitInputStream(inputFileName);
+        OutputStream output = new FileOutputStream(outputFileName);
+        try {
+            if ((int) input.readBits(Integer.SIZE) != MAGIC)
+                throw new IOException("Not an order-1 Huffman file: " + inputFileName);
+            long length = input.readBits(Integer.SIZE) | input.readBits(Integer.SIZE) << Integer.SIZE;
+            boolean[] own = new boolean[CHAR_MAX];
+            for (int context = 0; context < CHAR_MAX; context++)
+                own[context] = input.readBit() == 1;
+            HuffmanDecoder[] decoders = new HuffmanDecoder[CHAR_MAX];
+            for (int context = 0; context < CHAR_MAX; context++) {
+                if (own[context])
+                    decoders[context] = readDecoder(input);
+            }
+            HuffmanDecoder fallback = readDecoder(input);
+            for (int context = 0; context < CHAR_MAX; context++) {
+                if (!own[context])
+                    decoders[context] = fallback;
+            }
+
+            // Decode every byte with the decoder of the byte before it
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count = 0;
+            int previous = 0;
+            for (long i = 0; i < length; i++) {
+                int n = decoders[previous].decode(input);
+                if (n < 0 || n >= CHAR_MAX)
+                    throw new IOException("Order-1 Huffman file is corrupt after "
+                                          + i + " of " + length + " bytes");
+                buffer[count++] = (byte) n;
+                if (count == buffer.length) {
+                    output.write(buffer, 0, count);
+                    count = 0;
+                }
+                previous = n;
+            }
+            output.write(buffer, 0, count);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Order-1 Huffman file is corrupt: " + e.getMessage());
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+
+    /** Reads a table of code lengths and returns a decoder for its codes.
+      *
+      * @param input the stream positioned at the code lengths.
+      * @return a decoder for the canonical codes with those lengths.
+      */
+    private static HuffmanDecoder readDecoder(BitInputStream input) {
+        int[] lengths = HuffmanTree.readCodeLengths(input, CHAR_MAX + 1);
+        return new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths);
+    }
+}
@@ -0,0 +1,222 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Utility class for counting how often each byte value occurs in a large,
+  * usually memory-mapped, input.
+  * 
+  * The input is cut into slices of SLICE_SIZE bytes that are counted on all
+  * cores at once. Each slice is counted into four interleaved histograms, so
+  * that runs of the same byte increment different counters rather than
+  * waiting on the store to the previous one, and the histograms are summed
+  * into a single array of long counts at the end.
+  */
+public class FrequencyCounter {
+    
+    public static final int DEFAULT_STRIDE = 64;    // chunks per sampled chunk
+    
+    private static final int CHAR_MAX = 256;        // number of byte values
+    private static final int SLICE_SIZE = 1 << 24;  // bytes counted per task
+    private static final int WAYS = 4;              // interleaved histograms
+    private static final int SAMPLE_CHUNK = 1 << 12; // bytes per sampled chunk
+    private static final int MIN_SAMPLE_CHUNKS = 64; // fewest chunks worth sampling
+    
+    
+    /** Returns the number of occurrences of each byte value in the input.
+      * 
+      * @param input the buffers holding the data to be counted; their
+      *        positions and limits are left unchanged.
+      * @return a long array containing the frequencies of various ASCII
+      *         characters.
+      */
+    public static long[] count(ByteBuffer[] input) {
+        List<Callable<int[]>> slices = new ArrayList<Callable<int[]>>();
+        for (ByteBuffer buffer : input) {
+            for (int start = buffer.position(); start < buffer.limit(); start += SLICE_SIZE) {
+                final ByteBuffer slice = buffer;
+                final int from = start;
+                final int to = (int) Math.min((long) start + SLICE_SIZE, buffer.limit());
+                slices.add(new Callable<int[]>() {
+                    public int[] call() {
+                        return count(slice, from, to);
+                    }
+                });
+            }
+        }
+        
+        return sum(slices, CHAR_MAX);
+    }
+    
+    
+    /** Returns an estimate of the number of occurrences of each byte value in
+      * the input, counted from a strided sample of it.
+      * 
+      * Only one chunk of SAMPLE_CHUNK bytes out of every stride is counted, so
+      * only those pages of a mapped file are ever read. Byte values that do
+      * not occur in the sample are given a count of 1, so that every byte has
+      * a code and the estimate can code any byte of the input. Inputs too
+      * small to give MIN_SAMPLE_CHUNKS chunks are counted exactly.
+      * 
+      * @param input the buffers holding the data to be counted; their
+      *        positions and limits are left unchanged.
+      * @param stride the number of chunks per chunk that is counted; 1 counts
+      *        every byte.
+      * @throws IllegalArgumentException if stride is not positive.
+      * @return a long array containing the sampled frequencies, all nonzero.
+      */
+    public static long[] sample(ByteBuffer[] input, int stride) {
+        if (stride <= 0)
+            throw new IllegalArgumentException("Illegal stride: " + stride);
+        long length = 0;
+        for (ByteBuffer buffer : input)
+            length += buffer.remaining();
+        long[] count;
+        if (stride == 1 || length / SAMPLE_CHUNK / stride < MIN_SAMPLE_CHUNKS) {
+            count = count(input);
+        } else {
+            // Count the sampled chunks of each slice in a task of its own
+            List<Callable<int[]>> slices = new ArrayList<Callable<int[]>>();
+            long step = (long) SAMPLE_CHUNK * stride;
+            for (ByteBuffer buffer : input) {
+                for (long start = buffer.position(); start < buffer.limit(); start += SLICE_SIZE) {
+                    final ByteBuffer slice = buffer;
+                    final long first = ((start - buffer.position() + step - 1) / step) * step
+                                       + buffer.position();
+                    final long end = Math.min(start + SLICE_SIZE, buffer.limit());
+                    slices.add(new Callable<int[]>() {
+                        public int[] call() {
+                            int[] count = new int[CHAR_MAX];
+                            for (long from = first; from < end; from += step) {
+                                int[] chunkCount = count(slice, (int) from,
+                                                         (int) Math.min(from + SAMPLE_CHUNK, slice.limit()));
+                                for (int i = 0; i < CHAR_MAX; i++)
+                                    count[i] += chunkCount[i];
+                            }
+                            return count;
+                        }
+                    });
+                }
+            }
+            count = sum(slices, CHAR_MAX);
+        }
+        for (int i = 0; i < CHAR_MAX; i++)
+            count[i] = Math.max(count[i], 1);
+        return count;
+    }
+    
+    
+    /** Returns the number of occurrences of each pair of consecutive byte
+      * values in the input, for order-1 context modelling.
+      * 
+      * The first byte of the input is counted as following a 0 byte.
+      * 
+      * @param input the buffers holding the data to be counted; their
+      *        positions and limits are left unchanged.
+      * @return a long array in which element previous * CHAR_MAX + n holds the
+      *         number of times byte n follows byte previous.
+      */
+    public static long[] countPairs(ByteBuffer[] input) {
+        List<Callable<int[]>> slices = new ArrayList<Callable<int[]>>();
+        int previous = 0;
+        for (ByteBuffer buffer : input) {
+            for (int start = buffer.position(); start < buffer.limit(); start += SLICE_SIZE) {
+                final ByteBuffer slice = buffer;
+                final int from = start;
+                final int to = (int) Math.min((long) start + SLICE_SIZE, buffer.limit());
+                final int context = previous;
+                slices.add(new Callable<int[]>() {
+                    public int[] call() {
+                        return countPairs(slice, from, to, context);
+                    }
+                });
+                previous = buffer.get(to - 1) & 0xFF;
+            }
+        }
+        
+        return sum(slices, CHAR_MAX * CHAR_MAX);
+    }
+    
+    
+    /** Runs the supplied counting tasks on the common pool and adds up their
+      * counts.
+      * 
+      * The counts of each task are added as soon as it finishes, so only the
+      * arrays of the tasks that are running or waiting to be added are alive
+      * at once, rather than one array per task until all have finished.
+      * 
+      * @param slices the tasks, each returning size counts.
+      * @param size the number of counts.
+      * @return the sums of the counts of all tasks.
+      */
+    private static long[] sum(List<Callable<int[]>> slices, int size) {
+        long[] count = new long[size];
+        CompletionService<int[]> results =
+            new ExecutorCompletionService<int[]>(ForkJoinPool.commonPool());
+        for (Callable<int[]> slice : slices)
+            results.submit(slice);
+        try {
+            for (int n = 0; n < slices.size(); n++) {
+                int[] sliceCount = results.take().get();
+                for (int i = 0; i < size; i++)
+                    count[i] += sliceCount[i];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e.toString());
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause().toString());
+        }
+        return count;
+    }
+    
+    
+    /** Returns the number of occurrences of each pair of consecutive byte
+      * values in buffer between the indices from (inclusive) and to
+      * (exclusive).
+      * 
+      * @param buffer the buffer holding the data to be counted.
+      * @param from the index of the first byte to be counted.
+      * @param to the index after the last byte to be counted.
+      * @param previous the byte before the first one, or 0 at the start.
+      * @return an int array containing the pair frequencies of the slice.
+      */
+    private static int[] countPairs(ByteBuffer buffer, int from, int to, int previous) {
+        int[] count = new int[CHAR_MAX * CHAR_MAX];
+        for (int i = from; i < to; i++) {
+            int n = buffer.get(i) & 0xFF;
+            count[previous * CHAR_MAX + n]++;
+            previous = n;
+        }
+        return count;
+    }
+    
+    
+    /** Returns the number of occurrences of each byte value in buffer between
+      * the indices from (inclusive) and to (exclusive).
+      * 
+      * A slice is at most SLICE_SIZE bytes long, so int counts cannot overflow.
+      * 
+      * @param buffer the buffer holding the data to be counted.
+      * @param from the index of the first byte to be counted.
+      * @param to the index after the last byte to be counted.
+      * @return an int array containing the frequencies of the slice.
+      */
+    private static int[] count(ByteBuffer buffer, int from, int to) {
+        int[] count = new int[WAYS * CHAR_MAX];
+        int i = from;
+        for (; i + WAYS <= to; i += WAYS) {
+            count[buffer.get(i) & 0xFF]++;
+            count[CHAR_MAX + (buffer.get(i + 1) & 0xFF)]++;
+            count[2 * CHAR_MAX + (buffer.get(i + 2) & 0xFF)]++;
+            count[3 * CHAR_MAX + (buffer.get(i + 3) & 0xFF)]++;
+        }
+        for (; i < to; i++)
+            count[buffer.get(i) & 0xFF]++;
+        
+        for (int way = 1; way < WAYS; way++) {
+            for (int n = 0; n < CHAR_MAX; n++)
+                count[n] += count[way * CHAR_MAX + n];
+        }
+        return Arrays.copyOf(count, CHAR_MAX);
+    }
+}
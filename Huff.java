@@ -1,5 +1,8 @@
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
 
 /** Program that uses Huffman encoding to compress the contents of a supplied 
@@ -11,22 +14,26 @@ public class Huff {
     
     // Class constants
     private static final int CHAR_MAX = 256;
-    private static final int EOF = -1;
+    static final int MAP_SIZE = 1 << 30; // bytes mapped per buffer
     
     // Fields for various file names
-    private static String inputFileName;
-    private static String codeFileName;
-    private static String outputFileName;
+    private final String inputFileName;
+    private final String codeFileName;
+    private final String outputFileName;
     
+    private HuffmanMetrics metrics = HuffmanMetrics.NONE; // receives measurements
     
-    /** Sets the various global filenames.
+    
+    /** Constructs a Huff that compresses the supplied file.
       * 
       * In particular, the supplied filename is stemmed to produce the huffed
-      * file name and the code file name.
+      * file name and the code file name. A Huff holds nothing but these names
+      * and its metrics listener, so any number of them can compress different
+      * files at once.
       * 
       * @param fileName the name of the file to be compressed.
       */
-    private static void setFileNames(String fileName) {
+    public Huff(String fileName) {
         inputFileName = fileName;
         Scanner tokenizer = new Scanner(inputFileName);
         tokenizer.useDelimiter("\\.");
@@ -36,125 +43,326 @@ public class Huff {
     }
     
     
-    /** Returns the frequency if each character in the input file.
+    /** Sets the listener that receives the timings and sizes of compression.
       * 
-      * Input file name is obtained from the global variable inputFileName.
+      * @param metrics the listener, or HuffmanMetrics.NONE to measure nothing.
+      */
+    public void setMetrics(HuffmanMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    
+    /** Maps the supplied file into memory.
+      * 
+      * The file is mapped in pieces of MAP_SIZE bytes (the last one may be
+      * shorter), since a single buffer cannot address more than 2 GB.
       * 
+      * @param fileName the name of the file to be mapped.
       * @throws IOException if supplied file cannot be opened.
-      * @return an int array containing the frequencies of various ASCII
-      *         characters.
+      * @return read-only buffers holding consecutive pieces of the file.
       */
-    private static int[] countCharacterFrequencies() throws IOException {
-        FileInputStream inputStream = new FileInputStream(inputFileName);
-        int[] count = new int[CHAR_MAX];
-        int n = inputStream.read();
-        while (n != EOF) {
-            count[n]++;
-            n = inputStream.read();
+    static ByteBuffer[] mapFile(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName))) {
+            long size = channel.size();
+            ByteBuffer[] input = new ByteBuffer[(int) ((size + MAP_SIZE - 1) / MAP_SIZE)];
+            for (int i = 0; i < input.length; i++) {
+                long position = (long) i * MAP_SIZE;
+                input[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                       Math.min(MAP_SIZE, size - position));
+            }
+            return input;
         }
-        inputStream.close();
-        return count;
     }
     
     
-    /** Returns the codes defined in the code file.
+    /** Compresses the supplied input using the supplied codes, followed by the
+      * code for the pseudo-EOF.
       * 
-      * The code file name is obtained from the global variable codeFileName.
+      * The codes are packed as returned by HuffmanTree.getCodes, so that each
+      * character takes a single call to BitOutputStream.writeBits.
       * 
-      * @throws IOException if the code file cannot be opened.
-      * @return a String array containing the codes read from the file.
+      * @param input the buffers holding the data to be compressed.
+      * @param codes the code bits of each character, first bit lowest.
+      * @param lengths the code length of each character.
+      * @param output the already open stream that receives the data.
+      * @throws IllegalArgumentException if a character of input has no code.
       */
-    private static String[] readCodes() throws IOException {
+    public static void encode(ByteBuffer[] input, long[] codes, int[] lengths,
+                              BitOutputStream output) {
+        for (ByteBuffer buffer : input)
+            encode(buffer, buffer.position(), buffer.limit(), codes, lengths, output);
         
-        String[] codes = new String[CHAR_MAX + 1];
-        Scanner codeInput = new Scanner(new File(codeFileName));
-        while (codeInput.hasNextLine()) {
-            int n = Integer.parseInt(codeInput.nextLine());
-            codes[n] = codeInput.nextLine();
-        }
-        
-        return codes;
+        // Write the code for the pseudo-EOF
+        output.writeBits(codes[CHAR_MAX], lengths[CHAR_MAX]);
     }
     
     
-    /** Writes the supplied code to the supplied stream.
-      * 
-      * The supplied stream is assumed to be already open, and the string s
-      * is assumed to be composed of only 0s and 1s.
+    /** Compresses the bytes of buffer between the indices from (inclusive) and
+      * to (exclusive) using the supplied codes, without a pseudo-EOF.
       * 
-      * @param s the 0-1 code to be written.
-      * @param output the output stream to which the data is to be written.
+      * @param buffer the buffer holding the data to be compressed.
+      * @param from the index of the first byte to be compressed.
+      * @param to the index after the last byte to be compressed.
+      * @param codes the code bits of each character, first bit lowest.
+      * @param lengths the code length of each character.
+      * @param output the already open stream that receives the data.
+      * @throws IllegalArgumentException if a character of input has no code.
       */
-    private static void writeString(String s, BitOutputStream output) {
-        for (int i = 0; i < s.length(); i++)
-            output.writeBit(s.charAt(i) - '0');
+    public static void encode(ByteBuffer buffer, int from, int to, long[] codes,
+                              int[] lengths, BitOutputStream output) {
+        for (int i = from; i < to; i++) {
+            int n = buffer.get(i) & 0xFF;
+            if (lengths[n] == 0)
+                throw new IllegalArgumentException("No code for " + n +
+                                                   " (the character '" + (char)n + "')");
+            output.writeBits(codes[n], lengths[n]);
+        }
     }
     
     
-    /** Compresses the data from the input file using codes and writes the
-      * compressed data to the output file.
+    /** Compresses the file into the .huff file in the supplied format.
       * 
-      * The input file is specified via the global variable inputFileName and
-      * the output file is specified via the global varaible outputFileName.
+      * @param format the command line option of the format (see main), or
+      *        null for the original format with a separate .code file.
+      * @param stride for the original and canonical formats, 1 to count the
+      *        characters exactly, or the stride of the sample they are
+      *        estimated from (see FrequencyCounter.sample).
+      * @throws IOException if a file cannot be opened.
+      * @throws IllegalArgumentException if format is not known, or stride is
+      *         not 1 for a format that always counts every character.
+      */
+    public void compress(String format, int stride) throws IOException {
+        if (format == null || format.equals("-canonical")) {
+            compress(format != null, stride);
+            return;
+        }
+        if (stride != 1)
+            throw new IllegalArgumentException("Cannot sample with " + format);
+        long start = System.nanoTime();
+        if (format.equals("-blocks")) {
+            BlockHuff.compress(inputFileName, outputFileName, BlockHuff.DEFAULT_BLOCK_SIZE);
+        } else if (format.equals("-order1")) {
+            ContextHuff.compress(inputFileName, outputFileName);
+        } else if (format.equals("-lz")) {
+            LzHuff.compress(new BufferedInputStream(new FileInputStream(inputFileName)),
+                            new FileOutputStream(outputFileName), LzHuff.DEFAULT_WINDOW_SIZE);
+        } else if (format.equals("-index")) {
+            IndexedHuff.compress(inputFileName, outputFileName, IndexedHuff.DEFAULT_INTERVAL);
+        } else {
+            throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        if (metrics != HuffmanMetrics.NONE) {
+            metrics.stage(inputFileName, "compress", System.nanoTime() - start);
+            metrics.bytes(inputFileName, new File(inputFileName).length(),
+                          new File(outputFileName).length());
+        }
+    }
+    
+    
+    /** Compresses the file into the .huff file, together with a .code file
+      * unless the codes are canonical.
       * 
-      * @param codes the Huffman codes to use for compressing the input data.
-      * @throws IOException if the input or output files cannot be opened.
+      * @param canonical whether to store canonical code lengths in a header
+      *        of the .huff file instead of writing a .code file.
+      * @param stride 1 to count the characters exactly, or the stride of the
+      *        sample they are estimated from.
+      * @throws IOException if a file cannot be opened.
       */
-    private static void encode(String[] codes) throws IOException {
-        FileInputStream inputStream = new FileInputStream(inputFileName);
-        BitOutputStream outputStream = new BitOutputStream(outputFileName);
+    public void compress(boolean canonical, int stride) throws IOException {
         
-        // Encode the input file, one byte at a time
-        boolean done = false;
-        int n = inputStream.read();
-        while (n != EOF) {
-            if (codes[n] == null) {
-                System.out.println("Your code file has no code for " + n +
-                                   " (the character '" + (char)n + "')");
-                System.out.println("Exiting...");
-                System.exit(-1);
-            }
-            writeString(codes[n], outputStream);
-            n = inputStream.read();
-        }
+        // Map input file and count, or estimate, character frequencies
+        long start = System.nanoTime();
+        ByteBuffer[] input = mapFile(inputFileName);
+        long[] count = stride == 1 ? FrequencyCounter.count(input)
+                                   : FrequencyCounter.sample(input, stride);
+        long counted = System.nanoTime();
+        metrics.stage(inputFileName, "count", counted - start);
         
-        // Write the code for the pseudo-EOF
-        writeString(codes[CHAR_MAX], outputStream);
+        // Build Huffman tree, with length-limited codes for canonical mode
+        HuffmanTree tree = canonical ? new HuffmanTree(count, HuffmanTree.DEFAULT_MAX_LENGTH)
+                                     : new HuffmanTree(count);
+        long built = System.nanoTime();
+        metrics.stage(inputFileName, "build", built - counted);
+        
+        BitOutputStream outputStream = new BitOutputStream(outputFileName);
+        if (canonical) {
+            // Write the code lengths to the head of the output file
+            tree.writeHeader(outputStream);
+        } else {
+            // Write code file
+            PrintStream codeStream = new PrintStream(new File(codeFileName));
+            tree.write(codeStream);
+            codeStream.close();
+        }
+        long written = System.nanoTime();
+        metrics.stage(inputFileName, "write codes", written - built);
         
-        // Clean up
-        inputStream.close();
+        // Take the codes straight from the tree and encode the input file
+        long[] codes = new long[CHAR_MAX + 1];
+        int[] lengths = new int[CHAR_MAX + 1];
+        tree.getCodes(codes, lengths);
+        encode(input, codes, lengths, outputStream);
         outputStream.close();
-                
+        metrics.stage(inputFileName, "encode", System.nanoTime() - written);
+        
+        // Report sizes and code lengths, which take a pass over the counts;
+        // sampled counts are only estimates, so the exact ones are taken then
+        if (metrics != HuffmanMetrics.NONE) {
+            long[] exact = stride == 1 ? count : FrequencyCounter.count(input);
+            long inputBytes = 0;
+            for (ByteBuffer buffer : input)
+                inputBytes += buffer.remaining();
+            long outputBytes = new File(outputFileName).length();
+            if (!canonical)
+                outputBytes += new File(codeFileName).length();
+            metrics.bytes(inputFileName, inputBytes, outputBytes);
+            metrics.codeLength(inputFileName, HuffmanMetrics.averageLength(exact, lengths),
+                               HuffmanMetrics.entropy(exact));
+        }
+    }
+    
+    
+    /** Compresses the file into the .huff file with a pre-trained model.
+      * 
+      * @param model the model whose codes are used.
+      * @throws IOException if a file cannot be opened.
+      */
+    public void compress(HuffmanModel model) throws IOException {
+        long start = System.nanoTime();
+        model.encode(inputFileName, outputFileName);
+        if (metrics != HuffmanMetrics.NONE) {
+            metrics.stage(inputFileName, "encode", System.nanoTime() - start);
+            metrics.bytes(inputFileName, new File(inputFileName).length(),
+                          new File(outputFileName).length());
+        }
     }
     
     
-    /** Main driver method. */
+    /** Main driver method.
+      * 
+      * With the -canonical option the codes are made canonical and only their
+      * lengths are stored, in a small header at the start of the .huff file,
+      * instead of in a separate .code file. With the -blocks option the file is
+      * written as a BlockHuff container of independently encoded blocks, and
+      * with the -order1 option it is coded by ContextHuff, with codes that
+      * depend on the previous byte. The -lz option replaces repeated strings
+      * by LZ77 matches before Huffman coding, through LzHuff, and the -index
+      * option writes a canonical file with an IndexedHuff sync-point index,
+      * so that IndexedHuffReader can decode ranges of it. With the -sample
+      * option, or -sample=stride, the original and canonical formats build
+      * their codes from a sample of the file instead of counting all of it;
+      * the other formats and options always count every byte and reject it.
+      * 
+      * With the -stream option there is no prompt: standard input is
+      * compressed to standard output through a HuffmanOutputStream. The
+      * -adaptive option does the same through an AdaptiveHuffmanOutputStream,
+      * which needs no blocks.
+      * 
+      * With the -archive option there is no prompt either: every file under
+      * the named directory is compressed into the named HuffArchive, on one
+      * thread per core, with one set of codes for all files if -shared is
+      * given and codes for each file otherwise. The -train option trains a
+      * HuffmanModel on the named sample files and writes it to the named
+      * directory of models, and the -model option compresses each named file
+      * with the model in the named model file, with no code file or header.
+      * 
+      * With the -metrics option the wall time of each stage, the sizes of
+      * the files and, where the codes are built from byte counts, the
+      * average code length against the entropy are printed to standard error.
+      * The code length and entropy always come from exact counts, even when
+      * the codes were built from a sample.
+      * 
+      * @param args optionally, -canonical, -blocks, -order1, -lz, -index,
+      *        -sample[=stride], -metrics, -stream or -adaptive, or -archive
+      *        [-shared] directory archive, or -train directory sample..., or
+      *        -model model file....
+      */
     public static void main(String[] args) throws IOException {
+        String format = null;
+        int stride = 1;
+        boolean archive = false;
+        boolean shared = false;
+        boolean train = false;
+        boolean model = false;
+        HuffmanMetrics metrics = HuffmanMetrics.NONE;
+        List<String> names = new ArrayList<String>();
+        for (String arg : args) {
+            if (arg.equals("-canonical") || arg.equals("-blocks") || arg.equals("-order1")
+                || arg.equals("-lz") || arg.equals("-index") || arg.equals("-stream")
+                || arg.equals("-adaptive"))
+                format = arg;
+            else if (arg.equals("-sample"))
+                stride = FrequencyCounter.DEFAULT_STRIDE;
+            else if (arg.startsWith("-sample="))
+                stride = Integer.parseInt(arg.substring("-sample=".length()));
+            else if (arg.equals("-metrics"))
+                metrics = HuffmanMetrics.printTo(System.err);
+            else if (arg.equals("-archive"))
+                archive = true;
+            else if (arg.equals("-shared"))
+                shared = true;
+            else if (arg.equals("-train"))
+                train = true;
+            else if (arg.equals("-model"))
+                model = true;
+            else if ((archive || train || model) && !arg.startsWith("-"))
+                names.add(arg);
+            else
+                throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+        if (stride != 1 && (archive || train || model
+                            || (format != null && !format.equals("-canonical"))))
+            throw new IllegalArgumentException(
+                "-sample applies only to the original and -canonical formats");
+        
+        if ("-stream".equals(format)) {
+            HuffmanOutputStream output = new HuffmanOutputStream(System.out);
+            System.in.transferTo(output);
+            output.close();
+            return;
+        }
+        if ("-adaptive".equals(format)) {
+            AdaptiveHuffmanOutputStream output =
+                new AdaptiveHuffmanOutputStream(new BufferedOutputStream(System.out));
+            new BufferedInputStream(System.in).transferTo(output);
+            output.close();
+            return;
+        }
+        if (archive) {
+            if (names.size() != 2)
+                throw new IllegalArgumentException("Usage: Huff -archive [-shared] directory archive");
+            HuffArchive.create(names.get(0), names.get(1), shared,
+                               Runtime.getRuntime().availableProcessors());
+            return;
+        }
+        if (train) {
+            if (names.size() < 2)
+                throw new IllegalArgumentException("Usage: Huff -train directory sample...");
+            HuffmanModel trained = HuffmanModel.train(
+                names.subList(1, names.size()).toArray(new String[0]));
+            System.out.println("Wrote model " + trained.write(names.get(0)));
+            return;
+        }
+        if (model) {
+            if (names.size() < 2)
+                throw new IllegalArgumentException("Usage: Huff -model model file...");
+            HuffmanModel loaded = HuffmanModel.read(names.get(0));
+            for (String fileName : names.subList(1, names.size())) {
+                Huff huff = new Huff(fileName);
+                huff.setMetrics(metrics);
+                huff.compress(loaded);
+            }
+            return;
+        }
         
         // Prompt for user input
         System.out.print("Please enter the name of the file to be huffed: ");
         Scanner console = new Scanner(System.in);
         
-        // Set the various file names using the command line parameter        
-        setFileNames(console.next());        
-        
-        // Open input file and count character frequencies
-        int[] count = countCharacterFrequencies();
-        
-        // Build Huffman tree
-        HuffmanTree tree = new HuffmanTree(count);
-        
-        // Write code file
-        PrintStream codeStream = new PrintStream(new File(codeFileName));
-        tree.write(codeStream);
-        codeStream.close();
-        
-        // Open code file and record codes
-        String[] codes = readCodes();
-        
-        // Encode the input file
-        encode(codes);
+        // Compress the file named by the user
+        Huff huff = new Huff(console.next());
+        huff.setMetrics(metrics);
+        huff.compress(format, stride);
     }
     
 }
-
@@ -0,0 +1,334 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/** Compresses every file under a directory into a single indexed archive.
+  *
+  * The files are compressed on a fixed pool of threads, a batch at a time so
+  * that only a few compressed files are held in memory, and written to the
+  * archive in order. Either all files share one set of canonical codes, built
+  * from their combined frequencies, which suits many small files with similar
+  * contents, or every file gets its own codes, stored in front of its data.
+  * The archive layout, with all numbers little-endian, is:
+  *
+  *   header   MAGIC, flags (int, SHARED_CODES if the codes are shared) and,
+  *            with shared codes, the code lengths, padded to a whole byte
+  *   entries  the encoded files, one after another, without pseudo-EOFs; with
+  *            per-file codes each starts with its code lengths
+  *   index    for each file, the length of its name (int), its path relative
+  *            to the directory in UTF-8 with '/' separators, its original
+  *            length (long) and its encoded size (long)
+  *   footer   offset of the index (long), number of files (int), MAGIC
+  */
+public class HuffArchive {
+
+    public static final int MAGIC = 0x52465548;      // "HUFR" in file order
+    public static final int SHARED_CODES = 1;        // flag for one set of codes
+    private static final int CHAR_MAX = 256;
+    private static final int FOOTER_SIZE = Long.BYTES + 2 * Integer.BYTES;
+    private static final int MAX_HEADER_SIZE = 512;  // bytes, covering all code lengths
+    private static final int BUFFER_SIZE = 1 << 16;  // bytes decoded at a time
+
+
+    /** A file in the archive. */
+    private static class Entry {
+        String name;       // path relative to the archived directory
+        long length;       // length of the original file
+        long offset;       // offset of the encoded file in the archive
+        long size;         // number of encoded bytes
+        byte[] data;       // the encoded file, while it is being written
+
+        Entry(String name, long length, long size) {
+            this.name = name;
+            this.length = length;
+            this.size = size;
+        }
+    }
+
+
+    /** Compresses every regular file under the supplied directory into a
+      * single archive.
+      *
+      * @param directoryName the name of the directory to be archived.
+      * @param archiveName the name of the archive file to be written.
+      * @param shared whether all files share one set of codes.
+      * @param threads the number of files compressed at once.
+      * @throws IOException if a file cannot be read or the archive written.
+      * @throws IllegalArgumentException if threads is not positive.
+      */
+    public static void create(String directoryName, String archiveName,
+                              boolean shared, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Illegal thread count: " + threads);
+        Path directory = Paths.get(directoryName);
+        Path archive = Paths.get(archiveName).toAbsolutePath().normalize();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile)
+                        .filter(file -> !file.toAbsolutePath().normalize().equals(archive))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Build the shared codes from the counts of all files
+            int[] sharedLengths = null;
+            long[] sharedCodes = null;
+            if (shared) {
+                List<Callable<long[]>> counts = new ArrayList<Callable<long[]>>();
+                for (Path file : files)
+                    counts.add(() -> FrequencyCounter.count(Huff.mapFile(file.toString())));
+                long[] count = new long[CHAR_MAX];
+                for (long[] fileCount : BlockHuff.invokeAll(pool, counts)) {
+                    for (int i = 0; i < CHAR_MAX; i++)
+                        count[i] += fileCount[i];
+                }
+                sharedLengths = HuffmanTree.codeLengths(count, HuffmanTree.DEFAULT_MAX_LENGTH);
+                sharedCodes = HuffmanTree.canonicalCodes(sharedLengths);
+            }
+
+            // Write the header
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(archiveName));
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            BitOutputStream header = new BitOutputStream(headerBytes);
+            header.writeBits(MAGIC, Integer.SIZE);
+            header.writeBits(shared ? SHARED_CODES : 0, Integer.SIZE);
+            if (shared)
+                HuffmanTree.writeCodeLengths(header, sharedLengths);
+            header.close();
+            headerBytes.writeTo(output);
+            long offset = headerBytes.size();
+
+            // Compress the files a batch at a time and write them in order
+            List<Entry> entries = new ArrayList<Entry>();
+            int batchSize = 2 * threads;
+            for (int first = 0; first < files.size(); first += batchSize) {
+                List<Callable<Entry>> batch = new ArrayList<Callable<Entry>>();
+                for (Path file : files.subList(first, Math.min(first + batchSize, files.size()))) {
+                    final String name = StreamSupport.stream(directory.relativize(file).spliterator(), false)
+                        .map(Path::toString).collect(Collectors.joining("/"));
+                    final int[] lengths = sharedLengths;
+                    final long[] codes = sharedCodes;
+                    batch.add(() -> compress(file, name, codes, lengths));
+                }
+                for (Entry entry : BlockHuff.invokeAll(pool, batch)) {
+                    output.write(entry.data);
+                    entry.data = null;
+                    offset += entry.size;
+                    entries.add(entry);
+                }
+            }
+
+            // Write the index and footer
+            ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+            for (Entry entry : entries) {
+                byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer record = ByteBuffer.allocate(Integer.BYTES + name.length + 2 * Long.BYTES);
+                record.order(ByteOrder.LITTLE_ENDIAN);
+                record.putInt(name.length);
+                record.put(name);
+                record.putLong(entry.length);
+                record.putLong(entry.size);
+                indexBytes.write(record.array());
+            }
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            footer.putLong(offset);
+            footer.putInt(entries.size());
+            footer.putInt(MAGIC);
+            indexBytes.writeTo(output);
+            output.write(footer.array());
+            output.close();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /** Compresses a single file into an archive entry.
+      *
+      * @param file the file to be compressed.
+      * @param name the name of the file in the archive.
+      * @param codes the shared codes, or null to build codes for this file.
+      * @param lengths the shared code lengths, or null.
+      * @throws IOException if the file cannot be read.
+      * @return the entry, holding the encoded file.
+      */
+    private static Entry compress(Path file, String name, long[] codes, int[] lengths)
+        throws IOException {
+        ByteBuffer[] input = Huff.mapFile(file.toString());
+        long length = 0;
+        for (ByteBuffer buffer : input)
+            length += buffer.remaining();
+        ByteArrayOutputStream data = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, Huff.MAP_SIZE));
+        BitOutputStream bits = new BitOutputStream(data);
+        if (lengths == null) {
+            lengths = HuffmanTree.codeLengths(FrequencyCounter.count(input),
+                                              HuffmanTree.DEFAULT_MAX_LENGTH);
+            codes = HuffmanTree.canonicalCodes(lengths);
+            HuffmanTree.writeCodeLengths(bits, lengths);
+        }
+        for (ByteBuffer buffer : input)
+            Huff.encode(buffer, buffer.position(), buffer.limit(), codes, lengths, bits);
+        bits.close();
+        Entry entry = new Entry(name, length, data.size());
+        entry.data = data.toByteArray();
+        return entry;
+    }
+
+
+    /** Extracts every file of an archive into the supplied directory,
+      * decompressing the files on a fixed pool of threads.
+      *
+      * @param archiveName the name of the archive file to be read.
+      * @param directoryName the name of the directory that receives the files.
+      * @param threads the number of files decompressed at once.
+      * @throws IOException if the archive cannot be read or is not an archive,
+      *         or a file cannot be written.
+      * @throws IllegalArgumentException if threads is not positive.
+      * @return the total length of the extracted files.
+      */
+    public static long extract(String archiveName, String directoryName, int threads)
+        throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("Illegal thread count: " + threads);
+        Path archive = Paths.get(archiveName);
+        Path directory = Paths.get(directoryName).toAbsolutePath().normalize();
+        FileChannel channel = FileChannel.open(archive);
+        long size = channel.size();
+
+        // Read the footer, then the index it points to
+        if (size < FOOTER_SIZE)
+            throw new IOException("Not a Huffman archive: " + archiveName);
+        ByteBuffer footer = readBytes(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+        long indexOffset = footer.getLong();
+        int count = footer.getInt();
+        if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - FOOTER_SIZE)
+            throw new IOException("Not a Huffman archive: " + archiveName);
+        ByteBuffer index = readBytes(channel, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+        List<Entry> entries = new ArrayList<Entry>();
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[index.getInt()];
+                index.get(name);
+                entries.add(new Entry(new String(name, StandardCharsets.UTF_8),
+                                      index.getLong(), index.getLong()));
+            }
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IOException("Corrupt Huffman archive index: " + archiveName);
+        }
+
+        // The entries end where the index starts
+        long offset = indexOffset;
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            offset -= entries.get(i).size;
+            entries.get(i).offset = offset;
+        }
+
+        // Read the header, which is never longer than MAX_HEADER_SIZE bytes
+        ByteBuffer headerBytes = readBytes(channel, 0, (int) Math.min(size, MAX_HEADER_SIZE));
+        channel.close();
+        BitInputStream header = new BitInputStream(
+            new ByteArrayInputStream(headerBytes.array(), 0, headerBytes.limit()));
+        if ((int) header.readBits(Integer.SIZE) != MAGIC)
+            throw new IOException("Not a Huffman archive: " + archiveName);
+        boolean shared = ((int) header.readBits(Integer.SIZE) & SHARED_CODES) != 0;
+        HuffmanDecoder sharedDecoder = null;
+        if (shared) {
+            try {
+                int[] lengths = HuffmanTree.readCodeLengths(header, CHAR_MAX + 1);
+                sharedDecoder = new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Corrupt Huffman archive codes: " + archiveName
+                                      + ": " + e.getMessage());
+            }
+        }
+
+        // Decompress the files a batch at a time
+        long extracted = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            int batchSize = 2 * threads;
+            for (int first = 0; first < entries.size(); first += batchSize) {
+                List<Callable<Void>> batch = new ArrayList<Callable<Void>>();
+                for (Entry entry : entries.subList(first, Math.min(first + batchSize, entries.size()))) {
+                    Path file = directory.resolve(entry.name).normalize();
+                    if (!file.startsWith(directory))
+                        throw new IOException("Archive entry outside the directory: " + entry.name);
+                    final HuffmanDecoder decoder = sharedDecoder;
+                    extracted += entry.length;
+                    batch.add(() -> {
+                        extract(archive, entry, decoder, file);
+                        return null;
+                    });
+                }
+                BlockHuff.invokeAll(pool, batch);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return extracted;
+    }
+
+
+    /** Decompresses a single archive entry into the supplied file.
+      *
+      * @param archive the archive file.
+      * @param entry the entry to be decompressed.
+      * @param decoder the decoder for the shared codes, or null if the entry
+      *        starts with its own code lengths.
+      * @param file the file to be written.
+      * @throws IOException if the archive cannot be read or the file written.
+      */
+    private static void extract(Path archive, Entry entry, HuffmanDecoder decoder, Path file)
+        throws IOException {
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+        FileChannel channel = FileChannel.open(archive);
+        channel.position(entry.offset);
+        BitInputStream input = new BitInputStream(Channels.newInputStream(channel));
+        OutputStream output = new FileOutputStream(file.toFile());
+        try {
+            if (decoder == null) {
+                int[] lengths = HuffmanTree.readCodeLengths(input, CHAR_MAX + 1);
+                decoder = new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths);
+            }
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, entry.length)];
+            for (long left = entry.length; left > 0; left -= buffer.length) {
+                int n = (int) Math.min(buffer.length, left);
+                decoder.decode(input, buffer, 0, n);
+                output.write(buffer, 0, n);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt archive entry " + entry.name + ": " + e.getMessage());
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+
+    /** Reads count bytes of a file starting at the supplied position.
+      *
+      * @param channel the file to be read.
+      * @param position the offset of the first byte to be read.
+      * @param count the number of bytes to be read.
+      * @throws IOException if the bytes cannot be read.
+      * @return a little-endian buffer holding the bytes.
+      */
+    private static ByteBuffer readBytes(FileChannel channel, long position, int count)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Huffman archive is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+
+/** Benchmark driver for the stages of the Huffman codec.
+  *
+  * For every generated corpus and size, each stage is run repeatedly for
+  * about a second after a warm-up, and the driver reports its throughput in
+  * MB of original data per second, its time per run (the measure that makes
+  * sense for the stages that only depend on the code, such as building the
+  * tree) and the bytes the benchmark thread allocated per run (work handed
+  * to other threads, such as the parallel frequency count, is timed but its
+  * allocations are not counted). For the sampled frequency counts it also
+  * reports how much larger the output gets than with exact counts.
+  *
+  * Usage: java -Xmx4g HuffBenchmark [size ...]
+  *
+  * Sizes are given in bytes with an optional K, M or G suffix, for example
+  * "1K 1M 1G"; the default is 1K 1M 64M.
+  */
+public class HuffBenchmark {
+
+    private static final long WARMUP_NANOS = 500_000_000L;   // time spent warming up a stage
+    private static final long MEASURE_NANOS = 1_000_000_000L; // time spent measuring a stage
+    private static final int CHAR_MAX = 256;
+    private static final double MB = 1 << 20;
+    private static final int[] SAMPLE_STRIDES = {16, 64, 256}; // strides of the sampled counts
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+    /** A single stage of the codec, run once per call. */
+    private interface Stage {
+        void run() throws IOException;
+    }
+
+
+    /** Output stream that throws away everything written to it. */
+    private static class NullOutputStream extends OutputStream {
+        public void write(int b) {
+        }
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+
+    /** Returns random words drawn with a skewed (roughly Zipf) distribution
+      * from a small vocabulary, separated by spaces and line breaks.
+      *
+      * @param size the number of bytes to generate.
+      * @param random the source of randomness.
+      * @return the generated text.
+      */
+    private static byte[] text(int size, Random random) {
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 2 + random.nextInt(8);
+            for (int j = 0; j < length; j++)
+                word.append((char) ('a' + random.nextInt(26)));
+            words[i] = word.toString();
+        }
+        byte[] data = new byte[size];
+        int n = 0;
+        while (n < size) {
+            int rank = (int) Math.min(words.length - 1, Math.exp(random.nextDouble() * Math.log(words.length)) - 1);
+            String word = words[rank] + (random.nextInt(12) == 0 ? "\n" : " ");
+            for (int i = 0; i < word.length() && n < size; i++)
+                data[n++] = (byte) word.charAt(i);
+        }
+        return data;
+    }
+
+
+    /** Returns uniformly random bytes, which Huffman coding cannot compress.
+      *
+      * @param size the number of bytes to generate.
+      * @param random the source of randomness.
+      * @return the generated bytes.
+      */
+    private static byte[] randomBytes(int size, Random random) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+
+    /** Returns bytes drawn from a geometric distribution, so that a few values
+      * are very common and the rest get long codes.
+      *
+      * @param size the number of bytes to generate.
+      * @param random the source of randomness.
+      * @return the generated bytes.
+      */
+    private static byte[] skewed(int size, Random random) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++)
+            data[i] = (byte) Math.min(CHAR_MAX - 1, (int) (Math.log(random.nextDouble()) / Math.log(0.8)));
+        return data;
+    }
+
+
+    /** Runs a stage repeatedly and prints its throughput and allocation rate.
+      *
+      * @param corpus the name of the corpus.
+      * @param size the number of original bytes processed per run.
+      * @param name the name of the stage.
+      * @param stage the stage to be run.
+      * @throws IOException if the stage fails.
+      */
+    private static void measure(String corpus, int size, String name, Stage stage)
+        throws IOException {
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS)
+            stage.run();
+
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        int runs = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do {
+            stage.run();
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%-7s %10d  %-14s %12.1f MB/s %12.1f us/run %12.0f B/run%n",
+                          corpus, size, name, (double) size * runs / MB / seconds,
+                          seconds * 1e6 / runs, (double) allocated / runs);
+    }
+
+
+    /** Benchmarks every stage on a single corpus.
+      *
+      * @param corpus the name of the corpus.
+      * @param data the corpus.
+      * @throws IOException if a stage fails.
+      */
+    private static void benchmark(String corpus, byte[] data) throws IOException {
+        int size = data.length;
+        ByteBuffer[] input = {ByteBuffer.wrap(data)};
+        long[] count = FrequencyCounter.count(input);
+        HuffmanTree tree = new HuffmanTree(count);
+        long[] codes = new long[CHAR_MAX + 1];
+        int[] lengths = new int[CHAR_MAX + 1];
+        tree.getCodes(codes, lengths);
+        ByteArrayOutputStream codeFile = new ByteArrayOutputStream();
+        tree.write(new PrintStream(codeFile));
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        BitOutputStream encoder = new BitOutputStream(encoded);
+        Huff.encode(input, codes, lengths, encoder);
+        encoder.close();
+        byte[] compressed = encoded.toByteArray();
+        HuffmanDecoder decoder = new HuffmanDecoder(tree);
+        PrintStream discard = new PrintStream(new NullOutputStream());
+
+        measure(corpus, size, "count", () -> FrequencyCounter.count(input));
+        measure(corpus, size, "build-tree", () -> new HuffmanTree(count));
+        measure(corpus, size, "build-lengths", () -> HuffmanTree.codeLengths(count, HuffmanTree.DEFAULT_MAX_LENGTH));
+        measure(corpus, size, "write-codes", () -> tree.write(new PrintStream(new NullOutputStream())));
+        measure(corpus, size, "read-codes", () -> {
+            long[] readCodes = new long[CHAR_MAX + 1];
+            int[] readLengths = new int[CHAR_MAX + 1];
+            HuffmanTree.readCodes(new Scanner(new ByteArrayInputStream(codeFile.toByteArray())),
+                                  readCodes, readLengths);
+            new HuffmanDecoder(readCodes, readLengths);
+        });
+        measure(corpus, size, "encode", () -> {
+            BitOutputStream output = new BitOutputStream(new NullOutputStream());
+            Huff.encode(input, codes, lengths, output);
+            output.close();
+        });
+        measure(corpus, size, "decode-table",
+                () -> decoder.decode(new BitInputStream(new ByteArrayInputStream(compressed)), discard, CHAR_MAX));
+        System.out.printf("%-7s %10d  ratio %.3f%n", corpus, size, (double) size / compressed.length);
+
+        // Compare codes built from samples with codes built from exact counts
+        long exact = encodedBits(count, HuffmanTree.codeLengths(count, HuffmanTree.DEFAULT_MAX_LENGTH));
+        for (int stride : SAMPLE_STRIDES) {
+            measure(corpus, size, "sample/" + stride, () -> FrequencyCounter.sample(input, stride));
+            long[] estimate = FrequencyCounter.sample(input, stride);
+            long sampled = encodedBits(count, HuffmanTree.codeLengths(estimate, HuffmanTree.DEFAULT_MAX_LENGTH));
+            System.out.printf("%-7s %10d  sample/%-7d ratio %.3f against %.3f exact (%+.2f%% size)%n",
+                              corpus, size, stride, (double) size * 8 / sampled, (double) size * 8 / exact,
+                              100.0 * (sampled - exact) / exact);
+        }
+        System.out.println();
+    }
+
+
+    /** Returns the number of bits the supplied code lengths encode a corpus in.
+      *
+      * @param count the exact frequencies of the characters of the corpus.
+      * @param lengths the code length of each character and the pseudo-EOF.
+      * @return the number of bits of the encoded characters and pseudo-EOF.
+      */
+    private static long encodedBits(long[] count, int[] lengths) {
+        long bits = lengths[CHAR_MAX];
+        for (int i = 0; i < CHAR_MAX; i++)
+            bits += count[i] * lengths[i];
+        return bits;
+    }
+
+
+    /** Parses a size such as 64M into a number of bytes.
+      *
+      * @param size the size, with an optional K, M or G suffix.
+      * @return the number of bytes.
+      * @throws IllegalArgumentException if the size is out of range.
+      */
+    private static int parseSize(String size) {
+        long unit = 1;
+        char suffix = Character.toUpperCase(size.charAt(size.length() - 1));
+        if (suffix == 'K' || suffix == 'M' || suffix == 'G') {
+            unit = suffix == 'K' ? 1 << 10 : suffix == 'M' ? 1 << 20 : 1 << 30;
+            size = size.substring(0, size.length() - 1);
+        }
+        long bytes = Long.parseLong(size) * unit;
+        if (bytes <= 0 || bytes > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Illegal size: " + size);
+        return (int) bytes;
+    }
+
+
+    /** Main driver method. */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0)
+            args = new String[] {"1K", "1M", "64M"};
+        Random random = new Random(221);
+        for (String arg : args) {
+            int size = parseSize(arg);
+            benchmark("text", text(size, random));
+            benchmark("random", randomBytes(size, random));
+            benchmark("skewed", skewed(size, random));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Table-driven decoder for Huffman codes.
+ *
+ * Instead of following one tree pointer for every bit of input, the decoder peeks
+ * at the next PRIMARY_BITS bits of the stream and resolves a whole code with a
+ * single lookup in the primary table. Codes that are longer than PRIMARY_BITS
+ * continue into secondary tables that each resolve another SECONDARY_BITS bits, so
+ * even the rare long codes only take a few lookups.
+ *
+ * Each table entry is either a leaf, holding the decoded value in the upper bits
+ * and the number of bits it consumes within its table in the lowest byte, or a
+ * link to a secondary table, stored as the bitwise complement of the offset of
+ * that table (and therefore negative). An entry of 0 matches no code at all.
+ */
+public class HuffmanDecoder {
+    private static final int PRIMARY_BITS = 10;   // bits resolved by the first lookup
+    private static final int SECONDARY_BITS = 6;  // bits resolved by each further lookup
+    public static final int LOOKAHEAD_BITS = PRIMARY_BITS + SECONDARY_BITS; // most bits decode
+                                                  // peeks at, for codes of up to 16 bits
+    private static final int VALUE_SHIFT = 8;     // position of the value in a leaf entry
+    private static final int LENGTH_MASK = 0xFF;  // bits consumed by a leaf entry
+    private static final int EOF = -1;            // end-of-file marker
+    private static final int BUFFER_SIZE = 1 << 16; // bytes buffered before writing
+
+    private int[] table;   // primary table followed by all secondary tables
+    private int size;      // number of entries of table that are in use
+
+    /**
+     * Constructs a decoder for the codes of the supplied Huffman tree.
+     *
+     * @param tree - Huffman tree whose codes are to be decoded
+     */
+    public HuffmanDecoder(HuffmanTree tree) {
+        long[] codes = new long[Unhuff.CHAR_MAX + 1];
+        int[] lengths = new int[Unhuff.CHAR_MAX + 1];
+        tree.getCodes(codes, lengths);
+        build(codes, lengths);
+    }
+
+    /**
+     * Constructs a decoder for the supplied codes.
+     *
+     * The codes are packed as in HuffmanTree.getCodes: the first bit of codes[i] is
+     * its least significant bit and lengths[i] is its number of bits. Values with a
+     * length of 0 are not part of the code.
+     *
+     * @param codes - code bits of every value, first bit lowest
+     * @param lengths - code length of every value
+     * @throws IllegalArgumentException if one code is a prefix of another
+     */
+    public HuffmanDecoder(long[] codes, int[] lengths) {
+        build(codes, lengths);
+    }
+
+    /**
+     * Fills the tables with the supplied codes.
+     *
+     * @param codes - code bits of every value, first bit lowest
+     * @param lengths - code length of every value
+     */
+    private void build(long[] codes, int[] lengths) {
+        table = new int[1 << PRIMARY_BITS];
+        size = table.length;
+        for (int i = 0; i < lengths.length; i++) {
+            if (lengths[i] > 0) {
+                insert(i, codes[i], lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * Adds a single code to the tables, creating secondary tables along the way
+     * when the code is longer than the table it starts in.
+     *
+     * @param value - value the code decodes to
+     * @param code - code bits, first bit lowest
+     * @param length - number of bits in the code
+     * @throws IllegalArgumentException if the code overlaps one already added
+     */
+    private void insert(int value, long code, int length) {
+        int offset = 0;
+        int bits = PRIMARY_BITS;
+        while (length > bits) {
+            int index = offset + (int) (code & ((1 << bits) - 1));
+            if (table[index] > 0) {
+                throw new IllegalArgumentException("Code for " + value + " is not prefix-free");
+            }
+            if (table[index] == 0) {
+                int link = ~allocate(1 << SECONDARY_BITS); // may replace table
+                table[index] = link;
+            }
+            offset = ~table[index];
+            code >>>= bits;
+            length -= bits;
+            bits = SECONDARY_BITS;
+        }
+        // every index whose low length bits match the code decodes to value
+        int entry = (value << VALUE_SHIFT) | length;
+        for (int i = (int) code; i < (1 << bits); i += 1 << length) {
+            if (table[offset + i] != 0) {
+                throw new IllegalArgumentException("Code for " + value + " is not prefix-free");
+            }
+            table[offset + i] = entry;
+        }
+    }
+
+    /**
+     * Reserves room for a new secondary table at the end of the table array.
+     *
+     * @param entries - number of entries in the new table
+     * @return offset of the new table
+     */
+    private int allocate(int entries) {
+        if (size + entries > table.length) {
+            table = Arrays.copyOf(table, Math.max(table.length * 2, size + entries));
+        }
+        int offset = size;
+        size += entries;
+        return offset;
+    }
+
+    /**
+     * Reads a single code from the input and returns the value it decodes to.
+     *
+     * @param input - input stream positioned at the start of a code
+     * @return the decoded value, or -1 if the input has no bits left or they do
+     *         not start with a known code
+     */
+    public int decode(BitInputStream input) {
+        int bits = input.peekBits(PRIMARY_BITS);
+        if (bits == EOF) {
+            return EOF;
+        }
+        int width = PRIMARY_BITS;
+        int entry = table[bits];
+        while (entry < 0) {
+            input.skipBits(width);
+            width = SECONDARY_BITS;
+            bits = input.peekBits(width);
+            if (bits == EOF) {
+                return EOF;
+            }
+            entry = table[~entry + bits];
+        }
+        if (entry == 0) {
+            return EOF;
+        }
+        input.skipBits(entry & LENGTH_MASK);
+        return entry >>> VALUE_SHIFT;
+    }
+
+    /**
+     * Reads a single code from the input one bit at a time and returns the value
+     * it decodes to.
+     *
+     * Unlike decode, this never looks at bits past the end of the code, so it
+     * does not wait for more input from a pipe or socket than the code itself.
+     * It walks the same tables: the bits read so far, padded with 0s, index the
+     * current table, and a leaf that consumes no more bits than were read is the
+     * code.
+     *
+     * @param input - input stream positioned at the start of a code
+     * @return the decoded value, or -1 if the input has no bits left or they do
+     *         not start with a known code
+     */
+    public int decodeBits(BitInputStream input) {
+        int offset = 0;
+        int width = PRIMARY_BITS;
+        int code = 0;
+        int count = 0;
+        while (true) {
+            int bit = input.readBit();
+            if (bit == EOF) {
+                return EOF;
+            }
+            code |= bit << count++;
+            int entry = table[offset + code];
+            if (entry > 0 && (entry & LENGTH_MASK) <= count) {
+                return entry >>> VALUE_SHIFT;
+            }
+            if (count == width) {
+                // the whole table index is known: either follow a link or fail
+                if (entry >= 0) {
+                    return EOF;
+                }
+                offset = ~entry;
+                width = SECONDARY_BITS;
+                code = 0;
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Decodes exactly length characters from the input stream into the supplied
+     * array, as for a block of input whose size is known and that does not end
+     * in a pseudo-EOF marker.
+     *
+     * @param input - input stream to be decoded
+     * @param output - array that receives the decoded characters
+     * @param offset - index of output at which to store the first character
+     * @param length - number of characters to decode
+     * @throws IllegalArgumentException if the input ends or holds an unknown code
+     *         before length characters have been decoded
+     */
+    public void decode(BitInputStream input, byte[] output, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int value = decode(input);
+            if (value == EOF) {
+                throw new IllegalArgumentException("Compressed data ended after "
+                        + (i - offset) + " of " + length + " characters");
+            }
+            output[i] = (byte) value;
+        }
+    }
+
+    /**
+     * Decodes the input stream up to and including the pseudo-EOF marker and
+     * writes the decoded characters to the supplied output stream.
+     *
+     * Like the tree walking decoder this replaces, the low byte of the pseudo-EOF
+     * marker is written as the final character, so the output is byte for byte
+     * the same as before.
+     *
+     * @param input - input stream to be decoded
+     * @param output - supplied output stream that the decoded message is written to
+     * @param eof - pseudo-EOF marker that marks the end of the file
+     * @throws IllegalArgumentException if the input ends or holds an unknown code
+     *         before the pseudo-EOF marker; what was decoded up to that point has
+     *         been written
+     */
+    public void decode(BitInputStream input, PrintStream output, int eof) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long decoded = 0;
+        int count = 0;
+        int value = 0;
+        while (value != eof) {
+            value = decode(input);
+            if (value == EOF) {
+                output.write(buffer, 0, count);
+                throw new IllegalArgumentException("Compressed data is truncated or corrupt after "
+                        + (decoded + count) + " characters");
+            }
+            buffer[count++] = (byte) value;
+            if (count == buffer.length) {
+                output.write(buffer, 0, count);
+                decoded += count;
+                count = 0;
+            }
+        }
+        output.write(buffer, 0, count);
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+/** Input stream that uncompresses data written by a HuffmanOutputStream.
+  * 
+  * Frames are read and decoded one at a time, so memory use is bounded by the
+  * block size the data was written with. The lengths in each frame are
+  * checked against the block size and the checksum of the compressed bytes
+  * is checked before they are decoded, so a corrupt or truncated stream
+  * fails with an IOException at the first bad frame rather than decoding
+  * garbage. Streams with LEGACY_MAGIC have no checksums or block size to
+  * check, but the lengths of their frames are still checked against each
+  * other and the compressed bytes are read before the block is allocated.
+  */
+public class HuffmanInputStream extends InputStream {
+    
+    private static final int CHAR_MAX = 256;
+    private static final int MAX_HEADER_SIZE = 512; // bytes, covering all code lengths
+    
+    private InputStream input; // the compressed stream
+    private byte[] block;      // the most recently decoded block
+    private int size;          // number of bytes in block
+    private int position;      // index of the next byte of block to be read
+    private boolean finished;  // whether the end of stream marker has been read
+    private boolean checked;   // whether frames carry checksums
+    private int blockSize;     // largest number of bytes in a block, if checked
+    private long offset;       // number of bytes decoded before block
+    private CRC32C crc;        // checksum of the frame being checked
+    
+    
+    /** Constructs a HuffmanInputStream that reads from the supplied stream.
+      * 
+      * @param input the stream holding the compressed data.
+      * @throws IOException if the stream cannot be read or does not start with
+      *         HuffmanOutputStream.MAGIC or LEGACY_MAGIC.
+      */
+    public HuffmanInputStream(InputStream input) throws IOException {
+        this.input = input;
+        block = new byte[0];
+        int magic = readInt(input);
+        if (magic == HuffmanOutputStream.MAGIC) {
+            checked = true;
+            blockSize = readInt(input);
+            if (blockSize <= 0)
+                throw new IOException("Huffman stream is corrupt: block size " + blockSize);
+            crc = new CRC32C();
+        } else if (magic != HuffmanOutputStream.LEGACY_MAGIC) {
+            throw new IOException("Not a Huffman stream");
+        }
+    }
+    
+    
+    /** Constructs a HuffmanInputStream that reads from a channel.
+      * 
+      * @param channel the channel holding the compressed data.
+      * @throws IOException if the channel cannot be read or does not start with
+      *         HuffmanOutputStream.MAGIC or LEGACY_MAGIC.
+      */
+    public HuffmanInputStream(ReadableByteChannel channel) throws IOException {
+        this(Channels.newInputStream(channel));
+    }
+    
+    
+    @Override
+    public int read() throws IOException {
+        if (position == size && !readBlock())
+            return -1;
+        return block[position++] & 0xFF;
+    }
+    
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (position == size && !readBlock())
+            return -1;
+        int n = Math.min(len, size - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+    
+    
+    @Override
+    public int available() {
+        return size - position;
+    }
+    
+    
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+    
+    
+    /** Reads and decodes the next frame.
+      * 
+      * @throws IOException if the stream cannot be read or is corrupt.
+      * @return false if the end of stream marker was reached instead.
+      */
+    private boolean readBlock() throws IOException {
+        while (!finished) {
+            int length = readInt(input);
+            if (length == 0) {
+                finished = true;
+                break;
+            }
+            int compressedLength = readInt(input);
+            
+            // A block never takes more than 2 bytes per byte, plus its code
+            // lengths, whatever its codes, and a checked frame holds at most
+            // blockSize bytes
+            if (length < 0 || compressedLength <= 0
+                || compressedLength > 2L * length + MAX_HEADER_SIZE
+                || (checked && length > blockSize))
+                throw new IOException("Huffman stream is corrupt: frame of " + length
+                                      + " bytes in " + compressedLength + " at offset " + offset);
+            int payloadCrc = 0;
+            int dataCrc = 0;
+            if (checked) {
+                payloadCrc = readInt(input);
+                dataCrc = readInt(input);
+            }
+            byte[] compressed = input.readNBytes(compressedLength);
+            if (compressed.length < compressedLength)
+                throw new EOFException("Huffman stream is truncated in the frame at offset "
+                                       + offset);
+            
+            // Every byte takes at least one bit, so a frame whose bytes are all
+            // there cannot claim more than 8 per compressed byte; checking this
+            // before the block is allocated keeps a corrupt length from
+            // allocating more than the stream could hold
+            if (length > 8L * compressedLength)
+                throw new IOException("Huffman stream is corrupt: frame of " + length
+                                      + " bytes in " + compressedLength + " at offset " + offset);
+            if (checked) {
+                crc.reset();
+                crc.update(compressed);
+                if ((int) crc.getValue() != payloadCrc)
+                    throw new IOException("Huffman stream is corrupt: bad checksum in the frame"
+                                          + " at offset " + offset);
+            }
+            if (block.length < length)
+                block = new byte[length];
+            
+            BitInputStream bits = new BitInputStream(new ByteArrayInputStream(compressed));
+            try {
+                int[] lengths = HuffmanTree.readCodeLengths(bits, CHAR_MAX + 1);
+                new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths)
+                    .decode(bits, block, 0, length);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Huffman stream is corrupt: " + e.getMessage());
+            }
+            if (checked) {
+                crc.reset();
+                crc.update(block, 0, length);
+                if ((int) crc.getValue() != dataCrc)
+                    throw new IOException("Huffman stream is corrupt: decoded data does not match"
+                                          + " its checksum at offset " + offset);
+            }
+            offset += length;
+            size = length;
+            position = 0;
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /** Reads an int from the supplied stream, lowest byte first.
+      * 
+      * @param input the stream to be read from.
+      * @throws IOException if the stream cannot be read or ends first.
+      * @return the int that was read.
+      */
+    static int readInt(InputStream input) throws IOException {
+        int n = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            int b = input.read();
+            if (b == -1)
+                throw new EOFException("Huffman stream is truncated");
+            n |= b << (i * 8);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.*;
+
+/** Listener for measurements taken while Huff compresses and Unhuff
+  * uncompresses a file.
+  *
+  * Every event is reported once per stage or file, never per byte, so a
+  * listener costs nothing inside the coding loops; the figures that take some
+  * work to compute, such as the entropy, are only computed when a listener
+  * other than NONE is installed. All methods do nothing by default, so a
+  * listener overrides only the events it wants.
+  */
+public interface HuffmanMetrics {
+
+    /** Listener that ignores every event. */
+    public static final HuffmanMetrics NONE = new HuffmanMetrics() { };
+
+
+    /** Reports that a stage of compression or uncompression has finished.
+      *
+      * @param fileName the name of the file being coded.
+      * @param stage the name of the stage, such as count, build, write codes
+      *        or encode.
+      * @param nanos the wall time the stage took, in nanoseconds.
+      */
+    default void stage(String fileName, String stage, long nanos) {
+    }
+
+
+    /** Reports the sizes of a compressed file.
+      *
+      * @param fileName the name of the original file.
+      * @param inputBytes the length of the original file.
+      * @param outputBytes the length of the compressed file, including any
+      *        code file.
+      */
+    default void bytes(String fileName, long inputBytes, long outputBytes) {
+    }
+
+
+    /** Reports how close the codes of a file come to its entropy.
+      *
+      * @param fileName the name of the original file.
+      * @param averageLength the average code length, in bits per byte.
+      * @param entropy the Shannon entropy of the byte frequencies, in bits
+      *        per byte.
+      */
+    default void codeLength(String fileName, double averageLength, double entropy) {
+    }
+
+
+    /** Reports that a file has been uncompressed.
+      *
+      * @param fileName the name of the compressed file.
+      * @param outputBytes the number of bytes decoded.
+      * @param nanos the wall time decoding took, in nanoseconds.
+      */
+    default void decoded(String fileName, long outputBytes, long nanos) {
+    }
+
+
+    /** Returns a listener that prints every event as a line of the supplied
+      * stream.
+      *
+      * @param output the stream the events are printed to.
+      * @return the listener.
+      */
+    public static HuffmanMetrics printTo(PrintStream output) {
+        return new HuffmanMetrics() {
+            public void stage(String fileName, String stage, long nanos) {
+                output.printf("%s: %-12s %10.3f ms%n", fileName, stage, nanos / 1e6);
+            }
+
+            public void bytes(String fileName, long inputBytes, long outputBytes) {
+                output.printf("%s: %d bytes in, %d bytes out (ratio %.3f)%n", fileName,
+                              inputBytes, outputBytes, (double) inputBytes / Math.max(outputBytes, 1));
+            }
+
+            public void codeLength(String fileName, double averageLength, double entropy) {
+                output.printf("%s: %.4f bits per byte against %.4f entropy (+%.2f%%)%n", fileName,
+                              averageLength, entropy,
+                              entropy > 0 ? 100 * (averageLength / entropy - 1) : 0.0);
+            }
+
+            public void decoded(String fileName, long outputBytes, long nanos) {
+                output.printf("%s: %d bytes decoded in %.3f ms (%.1f MB/s)%n", fileName,
+                              outputBytes, nanos / 1e6,
+                              outputBytes / 1e6 / Math.max(nanos / 1e9, 1e-9));
+            }
+        };
+    }
+
+
+    /** Returns the Shannon entropy of the supplied frequencies.
+      *
+      * @param count the number of occurrences of each byte value.
+      * @return the entropy, in bits per byte, or 0 if nothing was counted.
+      */
+    public static double entropy(long[] count) {
+        long total = 0;
+        for (long n : count)
+            total += n;
+        double entropy = 0;
+        for (long n : count) {
+            if (n > 0)
+                entropy -= n * Math.log((double) n / total);
+        }
+        return total > 0 ? entropy / total / Math.log(2) : 0;
+    }
+
+
+    /** Returns the average length of the supplied codes over the supplied
+      * frequencies, leaving out the single pseudo-EOF.
+      *
+      * @param count the number of occurrences of each byte value.
+      * @param lengths the code length of each byte value.
+      * @return the average code length, in bits per byte, or 0 if nothing
+      *         was counted.
+      */
+    public static double averageLength(long[] count, int[] lengths) {
+        long total = 0;
+        long bits = 0;
+        for (int i = 0; i < count.length; i++) {
+            total += count[i];
+            bits += count[i] * lengths[i];
+        }
+        return total > 0 ? (double) bits / total : 0;
+    }
+}
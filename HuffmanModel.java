@@ -0,0 +1,186 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.zip.*;
+
+/** Pre-trained Huffman model that many files can be coded with.
+  *
+  * A model holds canonical codes trained once on a sample corpus, so small
+  * files need neither a .code file nor a header of code lengths, and no tree
+  * is built per file. Every byte value is counted at least once, so a model
+  * can code any file, even one with bytes the sample never had. A model is
+  * identified by a CRC-32 of its code lengths, and files coded with it
+  * start with FILE_MAGIC, the model ID and the file length, little-endian,
+  * followed by the encoded bytes without a pseudo-EOF.
+  *
+  * Models are stored as MAGIC, the model ID and the code lengths, in a file
+  * named after the ID (see fileName) so that HuffmanModelCache can find the
+  * model of a coded file.
+  */
+public class HuffmanModel {
+
+    public static final int MAGIC = 0x4D465548;      // "HUFM" in file order, starts a model file
+    public static final int FILE_MAGIC = 0x44465548; // "HUFD" in file order, starts a coded file
+    private static final int CHAR_MAX = 256;
+    private static final int BUFFER_SIZE = 1 << 16;  // bytes decoded at a time
+
+    private final int id;                  // CRC-32 of the code lengths
+    private final int[] lengths;           // code length of each character
+    private final long[] codes;            // code of each character, first bit lowest
+    private final HuffmanDecoder decoder;  // decoder for the codes
+
+
+    /** Constructs a model with the supplied code lengths.
+      *
+      * @param lengths the code length of each character and the pseudo-EOF.
+      */
+    private HuffmanModel(int[] lengths) {
+        this.lengths = lengths;
+        codes = HuffmanTree.canonicalCodes(lengths);
+        decoder = new HuffmanDecoder(codes, lengths);
+        CRC32 crc = new CRC32();
+        for (int length : lengths)
+            crc.update(length);
+        id = (int) crc.getValue();
+    }
+
+
+    /** Trains a model on the supplied sample files.
+      *
+      * @param sampleFileNames the names of the files of the sample corpus.
+      * @throws IOException if a sample file cannot be read.
+      * @return a model whose codes fit the combined sample.
+      */
+    public static HuffmanModel train(String[] sampleFileNames) throws IOException {
+        long[] count = new long[CHAR_MAX];
+        for (String fileName : sampleFileNames) {
+            long[] fileCount = FrequencyCounter.count(Huff.mapFile(fileName));
+            for (int i = 0; i < CHAR_MAX; i++)
+                count[i] += fileCount[i];
+        }
+        for (int i = 0; i < CHAR_MAX; i++)
+            count[i]++;
+        return new HuffmanModel(HuffmanTree.codeLengths(count, HuffmanTree.DEFAULT_MAX_LENGTH));
+    }
+
+
+    /** Returns the ID of this model.
+      *
+      * @return the CRC-32 of the code lengths.
+      */
+    public int id() {
+        return id;
+    }
+
+
+    /** Returns the name of the file that holds the model with the supplied ID.
+      *
+      * @param id the ID of the model.
+      * @return the ID in hexadecimal, followed by .hufm.
+      */
+    public static String fileName(int id) {
+        return String.format("%08x.hufm", id);
+    }
+
+
+    /** Writes this model to its file in the supplied directory.
+      *
+      * @param directoryName the name of the directory of models.
+      * @throws IOException if the model file cannot be written.
+      * @return the name of the model file.
+      */
+    public String write(String directoryName) throws IOException {
+        String fileName = Paths.get(directoryName, fileName(id)).toString();
+        BitOutputStream output = new BitOutputStream(new FileOutputStream(fileName));
+        output.writeBits(MAGIC, Integer.SIZE);
+        output.writeBits(id, Integer.SIZE);
+        HuffmanTree.writeCodeLengths(output, lengths);
+        output.close();
+        return fileName;
+    }
+
+
+    /** Reads a model written by write.
+      *
+      * @param fileName the name of the model file.
+      * @throws IOException if the file cannot be read, is not a model file or
+      *         does not match its ID.
+      * @return the model.
+      */
+    public static HuffmanModel read(String fileName) throws IOException {
+        BitInputStream input = new BitInputStream(new FileInputStream(fileName));
+        try {
+            if ((int) input.readBits(Integer.SIZE) != MAGIC)
+                throw new IOException("Not a Huffman model: " + fileName);
+            int id = (int) input.readBits(Integer.SIZE);
+            HuffmanModel model = new HuffmanModel(HuffmanTree.readCodeLengths(input, CHAR_MAX + 1));
+            if (model.id != id)
+                throw new IOException("Huffman model does not match its ID: " + fileName);
+            return model;
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt Huffman model " + fileName + ": " + e.getMessage());
+        } finally {
+            input.close();
+        }
+    }
+
+
+    /** Compresses the input file into the output file with this model.
+      *
+      * @param inputFileName the name of the file to be compressed.
+      * @param outputFileName the name of the file to be written.
+      * @throws IOException if either file cannot be opened.
+      */
+    public void encode(String inputFileName, String outputFileName) throws IOException {
+        ByteBuffer[] input = Huff.mapFile(inputFileName);
+        long length = 0;
+        for (ByteBuffer buffer : input)
+            length += buffer.remaining();
+        BitOutputStream output = new BitOutputStream(new FileOutputStream(outputFileName));
+        output.writeBits(FILE_MAGIC, Integer.SIZE);
+        output.writeBits(id, Integer.SIZE);
+        output.writeBits(length, Long.SIZE);
+        for (ByteBuffer buffer : input)
+            Huff.encode(buffer, buffer.position(), buffer.limit(), codes, lengths, output);
+        output.close();
+    }
+
+
+    /** Uncompresses a file written by encode into the output file, with the
+      * model the cache holds for its ID.
+      *
+      * @param inputFileName the name of the file to be uncompressed.
+      * @param outputFileName the name of the file to be written.
+      * @param models the cache of models to take the model from.
+      * @throws IOException if either file cannot be opened, the input is not
+      *         coded with a model or is corrupt, or its model cannot be found.
+      */
+    public static void decode(String inputFileName, String outputFileName,
+                              HuffmanModelCache models) throws IOException {
+        BitInputStream input = new BitInputStream(new FileInputStream(inputFileName));
+        OutputStream output = null;
+        try {
+            if ((int) input.readBits(Integer.SIZE) != FILE_MAGIC)
+                throw new IOException("Not coded with a Huffman model: " + inputFileName);
+            HuffmanModel model = models.get((int) input.readBits(Integer.SIZE));
+            long low = input.readBits(Integer.SIZE);
+            long high = input.readBits(Integer.SIZE);
+            if (low < 0 || high < 0)
+                throw new EOFException("Huffman file is truncated: " + inputFileName);
+            long length = low | high << Integer.SIZE;
+            output = new FileOutputStream(outputFileName);
+            byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+            for (long left = length; left > 0; left -= buffer.length) {
+                int n = (int) Math.min(buffer.length, left);
+                model.decoder.decode(input, buffer, 0, n);
+                output.write(buffer, 0, n);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt Huffman file " + inputFileName + ": " + e.getMessage());
+        } finally {
+            if (output != null)
+                output.close();
+            input.close();
+        }
+    }
+}
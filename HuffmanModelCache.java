@@ -0,0 +1,58 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Cache of the pre-trained Huffman models in a directory.
+  *
+  * Each model, with its decode tables, is read from its file the first time
+  * it is asked for and kept until capacity other models have been used more
+  * recently, so decoding many files that share a few models reads each model
+  * only once. A cache may be used from several threads.
+  */
+public class HuffmanModelCache {
+
+    public static final int DEFAULT_CAPACITY = 16; // models kept in memory
+
+    private final String directoryName;             // directory of model files
+    private final Map<Integer, HuffmanModel> models; // models by ID, least recently used first
+
+
+    /** Constructs a cache of the models in the supplied directory.
+      *
+      * @param directoryName the name of the directory of model files.
+      * @param capacity the largest number of models kept in memory.
+      * @throws IllegalArgumentException if capacity is not positive.
+      */
+    public HuffmanModelCache(String directoryName, int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        this.directoryName = directoryName;
+        models = new LinkedHashMap<Integer, HuffmanModel>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, HuffmanModel> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /** Returns the model with the supplied ID, reading it if it is not
+      * cached.
+      *
+      * @param id the ID of the model.
+      * @throws IOException if the model is not cached and cannot be read.
+      * @return the model.
+      */
+    public synchronized HuffmanModel get(int id) throws IOException {
+        HuffmanModel model = models.get(id);
+        if (model == null) {
+            String fileName = Paths.get(directoryName, HuffmanModel.fileName(id)).toString();
+            if (!new File(fileName).exists())
+                throw new FileNotFoundException("No Huffman model " + HuffmanModel.fileName(id)
+                                                + " in " + directoryName);
+            model = HuffmanModel.read(fileName);
+            models.put(id, model);
+        }
+        return model;
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.zip.*;
+
+/** Output stream that Huffman compresses everything written to it.
+  * 
+  * Data is collected into blocks of at most blockSize bytes. Each full block
+  * gets its own canonical codes and is written out as a frame, so memory use
+  * is bounded by the block size no matter how long the stream is. The stream
+  * starts with MAGIC and the block size, and every frame, with numbers
+  * little-endian, holds:
+  * 
+  *   the number of bytes in the block (int), or 0 for the end of the stream
+  *   the number of compressed bytes that follow (int)
+  *   the CRC-32C of the compressed bytes (int)
+  *   the CRC-32C of the bytes of the block (int)
+  *   the code lengths and the encoded block, padded to a whole byte
+  * 
+  * HuffmanInputStream reads the frames back and checks both checksums, so a
+  * corrupt or truncated stream fails at the first bad frame. Streams written
+  * before the checksums were added start with LEGACY_MAGIC and have frames
+  * of just the two lengths and the compressed bytes.
+  */
+public class HuffmanOutputStream extends OutputStream {
+    
+    public static final int MAGIC = 0x4B465548;           // "HUFK" in file order
+    public static final int LEGACY_MAGIC = 0x53465548;    // "HUFS", frames without checksums
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20; // bytes per block
+        
+    private OutputStream output; // the compressed stream
+    private byte[] block;        // bytes written but not yet compressed
+    private int size;            // number of bytes in block
+    private boolean closed;      // whether close has been called
+    
+    
+    /** Constructs a HuffmanOutputStream with the default block size.
+      * 
+      * @param output the stream that receives the compressed data.
+      * @throws IOException if the stream cannot be written to.
+      */
+    public HuffmanOutputStream(OutputStream output) throws IOException {
+        this(output, DEFAULT_BLOCK_SIZE);
+    }
+    
+    
+    /** Constructs a HuffmanOutputStream that writes to a channel.
+      * 
+      * @param channel the channel that receives the compressed data.
+      * @throws IOException if the channel cannot be written to.
+      */
+    public HuffmanOutputStream(WritableByteChannel channel) throws IOException {
+        this(Channels.newOutputStream(channel), DEFAULT_BLOCK_SIZE);
+    }
+    
+    
+    /** Constructs a HuffmanOutputStream with the specified block size.
+      * 
+      * @param output the stream that receives the compressed data.
+      * @param blockSize the largest number of bytes compressed together.
+      * @throws IOException if the stream cannot be written to.
+      * @throws IllegalArgumentException if blockSize is not positive.
+      */
+    public HuffmanOutputStream(OutputStream output, int blockSize) throws IOException {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("Illegal block size: " + blockSize);
+        this.output = output;
+        block = new byte[blockSize];
+        writeInt(output, MAGIC);
+        writeInt(output, blockSize);
+    }
+    
+    
+    @Override
+    public void write(int b) throws IOException {
+        if (size == block.length)
+            writeBlock();
+        block[size++] = (byte) b;
+    }
+    
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (size == block.length)
+                writeBlock();
+            int n = Math.min(len, block.length - size);
+            System.arraycopy(b, off, block, size, n);
+            size += n;
+            off += n;
+            len -= n;
+        }
+    }
+    
+    
+    /** Compresses and writes out whatever has been written so far, as a
+      * possibly short block, and flushes the underlying stream.
+      * 
+      * @throws IOException if the stream cannot be written to.
+      */
+    @Override
+    public void flush() throws IOException {
+        if (size > 0)
+            writeBlock();
+        output.flush();
+    }
+    
+    
+    /** Writes out the remaining data and the end of stream marker, and closes
+      * the underlying stream.
+      * 
+      * @throws IOException if the stream cannot be written to.
+      */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        if (size > 0)
+            writeBlock();
+        writeInt(output, 0);
+        output.close();
+    }
+    
+    
+    /** Compresses the buffered block and writes it out as a single frame.
+      * 
+      * @throws IOException if the stream cannot be written to.
+      */
+    private void writeBlock() throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(block, 0, size);
+        int[] lengths = HuffmanTree.codeLengths(FrequencyCounter.count(new ByteBuffer[] {data}),
+                                                HuffmanTree.DEFAULT_MAX_LENGTH);
+        long[] codes = HuffmanTree.canonicalCodes(lengths);
+        
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 2);
+        BitOutputStream bits = new BitOutputStream(compressed);
+        HuffmanTree.writeCodeLengths(bits, lengths);
+        Huff.encode(data, 0, size, codes, lengths, bits);
+        bits.close();
+        
+        byte[] payload = compressed.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        int payloadCrc = (int) crc.getValue();
+        crc.reset();
+        crc.update(block, 0, size);
+        
+        writeInt(output, size);
+        writeInt(output, payload.length);
+        writeInt(output, payloadCrc);
+        writeInt(output, (int) crc.getValue());
+        output.write(payload);
+        size = 0;
+    }
+    
+    
+    /** Writes an int to the supplied stream, lowest byte first.
+      * 
+      * @param output the stream to be written to.
+      * @param n the int to be written.
+      * @throws IOException if the stream cannot be written to.
+      */
+    static void writeInt(OutputStream output, int n) throws IOException {
+        for (int i = 0; i < Integer.BYTES; i++)
+            output.write(n >>> (i * 8));
+    }
+}
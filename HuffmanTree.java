@@ -12,6 +12,11 @@ import java.io.*;
  * 
  */
 public class HuffmanTree {
+    public static final int MAGIC = 0x43465548; // "HUFC" in file order, starts a canonical header
+    static final int LENGTH_BITS = 6;            // bits per code length in the header
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+    public static final int DEFAULT_MAX_LENGTH = 15; // keeps decode tables small
+
     public HuffmanNode root;
 
     /**
@@ -27,6 +32,20 @@ public class HuffmanTree {
      */
 
     public HuffmanTree(int[] count) {
+        this(toLongs(count));
+    }
+
+    /**
+     * Constructs a Huffman coding tree using the given array of frequencies
+     * 
+     * Same as HuffmanTree(int[]), but with counts that may exceed the range of an
+     * int, as they do for inputs larger than 2 GB.
+     * 
+     * @param count - array of frequencies where count[i] is the number of
+     *              occurences of the character with the ASCII value i.
+     */
+
+    public HuffmanTree(long[] count) {
         PriorityQueue<HuffmanNode> encodeTree = new PriorityQueue<HuffmanNode>();
 
         // creates a forest by adding nodes to encodeTree
@@ -42,6 +61,14 @@ public class HuffmanTree {
         int eof = count.length;
         encodeTree.add(new HuffmanNode(1, eof));
 
+        // an empty file leaves only the pseudo-EOF, which still needs a one bit
+        // code, so it becomes the left child of an otherwise empty root
+        if (encodeTree.size() == 1) {
+            HuffmanNode newNode = new HuffmanNode(1, -1);
+            newNode.left = encodeTree.poll();
+            encodeTree.add(newNode);
+        }
+
         while (encodeTree.size() > 1) {
 
             // retrieve and remove the two nodes with the smallest frequencies in tree
@@ -60,6 +87,37 @@ public class HuffmanTree {
         root = encodeTree.peek();
     }
 
+    /**
+     * Constructs a canonical Huffman coding tree in which no code is longer than
+     * maxLength bits.
+     * 
+     * The code lengths are computed by codeLengths, without building a forest of
+     * nodes first, and the tree is then built from the canonical codes.
+     * 
+     * @param count - array of frequencies where count[i] is the number of
+     *              occurences of the character with the ASCII value i.
+     * @param maxLength - the longest code allowed
+     */
+
+    public HuffmanTree(long[] count, int maxLength) {
+        int[] lengths = codeLengths(count, maxLength);
+        build(canonicalCodes(lengths), lengths);
+    }
+
+    /**
+     * Returns a copy of the given int frequencies as longs.
+     * 
+     * @param count - array of frequencies
+     * @return array holding the same frequencies as longs
+     */
+    private static long[] toLongs(int[] count) {
+        long[] result = new long[count.length];
+        for (int i = 0; i < count.length; i++) {
+            result[i] = count[i];
+        }
+        return result;
+    }
+
     /**
      * Writes the Huffman tree to the supplied output stream.
      * 
@@ -95,12 +153,11 @@ public class HuffmanTree {
         if (node == null) {
             return;
         }
-        // assign the current prefix to the bit of each leaf
+        // the current prefix is the code of each leaf
         if (node.left == null && node.right == null) {
-            node.bit = prefix;
             // add node to nodes list in left to right traversal order
             output.println(node.value);
-            output.println(node.bit);
+            output.println(prefix);
             return;
         }
         // traverse left
@@ -162,49 +219,444 @@ public class HuffmanTree {
     /** Reads the individual bits from the input stream and writes teh corresponding 
      * characters to the supplied output stream 
      * 
-     * Decodes the BitInputStream by visiting every leaf on the Huffman tree and writing
-     * the corresponding character to the output stream, thus recreating the original body
-     * ot text. This method uses the readBit() method from the BitInputStream class in 
-     * order to find the approprate leaf by traversing either left or right.
+     * Decodes the BitInputStream by building a HuffmanDecoder from this tree, which
+     * resolves several bits per table lookup instead of visiting one node per bit,
+     * and writing the corresponding character to the output stream, thus recreating
+     * the original body ot text.
      * 
      * @param input - input stream to be decoded
      * @param output - supplied output strean that decoded message is written to
      * @param eof - pseudo-EOF marker that marks the end of the file
+     * @throws IllegalArgumentException if the input ends or holds an unknown code
+     *         before the pseudo-EOF marker
      */
 
     public void decode(BitInputStream input, PrintStream output, int eof){
-        HuffmanNode node = root;
-        int value = -1;
-        
-        while(true){
-            if (value == eof){
-                break;
+        new HuffmanDecoder(this).decode(input, output, eof);
+    }
+
+    /** Fills the supplied arrays with the code of every leaf in the tree.
+     * 
+     * Codes are packed in the order their bits appear in the compressed stream: the
+     * first bit of a code is stored in the least significant position of
+     * codes[value] and lengths[value] holds the number of bits in the code. Values
+     * that do not appear in the tree are left untouched.
+     * 
+     * @param codes - array indexed by ASCII value that receives the code bits
+     * @param lengths - array indexed by ASCII value that receives the code lengths
+     */
+    public void getCodes(long[] codes, int[] lengths) {
+        getCodes(root, 0L, 0, codes, lengths);
+    }
+
+    /** Recursive helper function for the getCodes method.
+     * 
+     * @param node - current node in the Huffman tree during traversal
+     * @param code - bits of the path from the root to node, first bit lowest
+     * @param depth - number of bits in the path from the root to node
+     * @param codes - array indexed by ASCII value that receives the code bits
+     * @param lengths - array indexed by ASCII value that receives the code lengths
+     */
+    private void getCodes(HuffmanNode node, long code, int depth, long[] codes, int[] lengths) {
+        if (node == null) {
+            return;
+        }
+        if (node.left == null && node.right == null) {
+            if (node.value >= 0) {
+                codes[node.value] = code;
+                lengths[node.value] = depth;
             }
-            while (node.right != null || node.left != null){
-                int bit = input.readBit();
-                if (bit == 0){
-                    node = node.left;
+            return;
+        }
+        getCodes(node.left, code, depth + 1, codes, lengths);
+        getCodes(node.right, code | (1L << depth), depth + 1, codes, lengths);
+    }
+
+    /** Replaces the codes of this tree with canonical Huffman codes of the same
+     * lengths.
+     * 
+     * Canonical codes are assigned in order of increasing length, and in order of
+     * increasing ASCII value among codes of the same length, so that the lengths
+     * alone are enough to rebuild every code. A tree that is a single leaf is given
+     * a one bit code so that every value takes at least one bit to write.
+     */
+    public void makeCanonical() {
+        int[] lengths = new int[Unhuff.CHAR_MAX + 1];
+        getCodes(new long[lengths.length], lengths);
+        if (root != null && root.left == null && root.right == null) {
+            lengths[root.value] = 1;
+        }
+        build(canonicalCodes(lengths), lengths);
+    }
+
+    /** Returns the Huffman code lengths for the given frequencies, with no code
+     * longer than maxLength bits.
+     * 
+     * Like the tree built by HuffmanTree(long[]), the codes include a pseudo-EOF
+     * marker with a frequency of 1, but the lengths are computed on arrays: the
+     * characters are sorted by frequency once, after which the two-queue method
+     * merges them in linear time, since merged nodes are created in order of
+     * increasing frequency and only the fronts of the sorted characters and of the
+     * merged nodes need comparing. If that tree is deeper than maxLength, the
+     * lengths are recomputed with the package-merge algorithm, which finds the best
+     * lengths that respect the limit.
+     * 
+     * The lengths code the counts in as few bits as those of HuffmanTree(long[])
+     * when no limit is hit, but they are not always the same lengths: ties between
+     * equal frequencies are broken differently, and package-merge moves lengths
+     * once the limit is hit. Formats that rebuild codes from counts rather than
+     * storing the lengths must therefore not switch between the two.
+     * 
+     * @param count - array of frequencies where count[i] is the number of
+     *              occurences of the character with the ASCII value i.
+     * @param maxLength - the longest code allowed
+     * @return array of code lengths, the pseudo-EOF marker last
+     * @throws IllegalArgumentException if maxLength is too short for the number of
+     *         characters
+     */
+    public static int[] codeLengths(long[] count, int maxLength) {
+        int[] lengths = new int[count.length + 1];
+
+        // sort the characters that occur, and the pseudo-EOF, by frequency
+        int n = 0;
+        long[] sorted = new long[count.length + 1];
+        for (int i = 0; i < count.length; i++) {
+            if (count[i] > 0) {
+                // pack the frequency and the character into one sortable long
+                sorted[n++] = count[i] << 9 | i;
+            }
+        }
+        sorted[n++] = 1L << 9 | count.length;
+        Arrays.sort(sorted, 0, n);
+        int[] symbol = new int[n];
+        long[] weight = new long[2 * n - 1];
+        for (int i = 0; i < n; i++) {
+            symbol[i] = (int) (sorted[i] & 0x1FF);
+            weight[i] = sorted[i] >>> 9;
+        }
+        if (n == 1) {
+            lengths[symbol[0]] = 1;
+            return lengths;
+        }
+        if (n > 1L << Math.min(maxLength, 62)) {
+            throw new IllegalArgumentException("Cannot code " + n + " characters in "
+                    + maxLength + " bits");
+        }
+
+        // two-queue method: leaves are 0..n-1, merged nodes n..2n-2 in order
+        int[] parent = new int[2 * n - 1];
+        int leaf = 0;
+        int merged = n;
+        for (int next = n; next < 2 * n - 1; next++) {
+            int a = (leaf < n && (merged == next || weight[leaf] <= weight[merged])) ? leaf++ : merged++;
+            int b = (leaf < n && (merged == next || weight[leaf] <= weight[merged])) ? leaf++ : merged++;
+            weight[next] = weight[a] + weight[b];
+            parent[a] = next;
+            parent[b] = next;
+        }
+        int[] depth = new int[2 * n - 1];
+        int maxDepth = 0;
+        for (int i = 2 * n - 3; i >= 0; i--) {
+            depth[i] = depth[parent[i]] + 1;
+            maxDepth = Math.max(maxDepth, depth[i]);
+        }
+        if (maxDepth > maxLength) {
+            depth = packageMerge(weight, n, maxLength);
+        }
+        for (int i = 0; i < n; i++) {
+            lengths[symbol[i]] = depth[i];
+        }
+        return lengths;
+    }
+
+    /** Computes length-limited code lengths with the package-merge algorithm.
+     * 
+     * Each of maxLength rounds pairs up the items of the previous round into
+     * packages and merges the packages with the characters, both in order of
+     * weight. The code length of a character is the number of times it is used by
+     * the 2n - 2 lightest items of the last round. Only the number of packages
+     * taken from each round needs to be tracked, since the packages taken are
+     * always the lightest ones.
+     * 
+     * @param weight - array whose first n entries are the frequencies, ascending
+     * @param n - number of characters
+     * @param maxLength - the longest code allowed
+     * @return array of code lengths, in the order of weight
+     */
+    private static int[] packageMerge(long[] weight, int n, int maxLength) {
+        // item[round][i] is the character that item i of a round stands for, or
+        // -1 if the item is a package
+        int[][] item = new int[maxLength][];
+        long[] previous = Arrays.copyOf(weight, n);
+        item[0] = new int[n];
+        for (int i = 0; i < n; i++) {
+            item[0][i] = i;
+        }
+        for (int round = 1; round < maxLength; round++) {
+            int packages = previous.length / 2;
+            long[] current = new long[n + packages];
+            item[round] = new int[n + packages];
+            int leaf = 0;
+            int pack = 0;
+            for (int i = 0; i < current.length; i++) {
+                long packWeight = pack < packages ? previous[2 * pack] + previous[2 * pack + 1] : Long.MAX_VALUE;
+                if (leaf < n && weight[leaf] <= packWeight) {
+                    current[i] = weight[leaf];
+                    item[round][i] = leaf++;
+                } else {
+                    current[i] = packWeight;
+                    item[round][i] = -1;
+                    pack++;
                 }
-                else if (bit == 1){
+            }
+            previous = current;
+        }
+
+        int[] lengths = new int[n];
+        int taken = 2 * n - 2;
+        for (int round = maxLength - 1; round >= 0; round--) {
+            int packages = 0;
+            for (int i = 0; i < taken; i++) {
+                if (item[round][i] >= 0) {
+                    lengths[item[round][i]]++;
+                } else {
+                    packages++;
+                }
+            }
+            taken = 2 * packages;
+        }
+        return lengths;
+    }
+
+    /** Returns the canonical Huffman codes for the supplied code lengths.
+     * 
+     * Codes are packed as in getCodes, with the first bit of each code in the least
+     * significant position. Values with a length of 0 get no code.
+     * 
+     * @param lengths - array of code lengths indexed by ASCII value
+     * @return array of canonical codes indexed by ASCII value
+     * @throws IllegalArgumentException if the lengths cannot form a prefix code
+     */
+    public static long[] canonicalCodes(int[] lengths) {
+        int[] lengthCount = countLengths(lengths);
+        // find the first code of each length
+        long[] nextCode = new long[MAX_LENGTH + 2];
+        long code = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            code = (code + lengthCount[length - 1]) << 1;
+            nextCode[length] = code;
+        }
+        // hand out consecutive codes, reversing them into stream order
+        long[] codes = new long[lengths.length];
+        for (int i = 0; i < lengths.length; i++) {
+            int length = lengths[i];
+            if (length > 0) {
+                codes[i] = Long.reverse(nextCode[length]++) >>> (Long.SIZE - length);
+            }
+        }
+        return codes;
+    }
+
+    /** Counts the codes of each length, checking that the lengths can form a
+     * prefix code: every length is at most MAX_LENGTH and no more codes are
+     * given a length than there are bit strings of it left (the Kraft sum is at
+     * most 1). Corrupt lengths would otherwise give codes that overlap.
+     * 
+     * @param lengths - array of code lengths indexed by ASCII value
+     * @return number of codes of each length, with no count for length 0
+     * @throws IllegalArgumentException if a length is out of range or too many
+     *         codes share the short lengths
+     */
+    private static int[] countLengths(int[] lengths) {
+        int[] lengthCount = new int[MAX_LENGTH + 2];
+        for (int length : lengths) {
+            if (length < 0 || length > MAX_LENGTH) {
+                throw new IllegalArgumentException("Code length out of range: " + length);
+            }
+            lengthCount[length]++;
+        }
+        lengthCount[0] = 0;
+        // left is the number of unused bit strings of each length; once it
+        // exceeds the number of values every remaining code fits
+        long left = 1;
+        for (int length = 1; length <= MAX_LENGTH && left <= lengths.length; length++) {
+            left = 2 * left - lengthCount[length];
+            if (left < 0) {
+                throw new IllegalArgumentException("Over-subscribed code lengths");
+            }
+        }
+        return lengthCount;
+    }
+
+    /** Replaces the nodes of this tree with a tree holding the supplied codes.
+     * 
+     * @param codes - array of codes indexed by ASCII value, first bit lowest
+     * @param lengths - array of code lengths indexed by ASCII value
+     */
+    private void build(long[] codes, int[] lengths) {
+        root = new HuffmanNode(-1);
+        for (int i = 0; i < lengths.length; i++) {
+            HuffmanNode node = root;
+            for (int bit = 0; bit < lengths[i]; bit++) {
+                if (((codes[i] >>> bit) & 1) == 0) {
+                    if (node.left == null) {
+                        node.left = new HuffmanNode(-1);
+                    }
+                    node = node.left;
+                } else {
+                    if (node.right == null) {
+                        node.right = new HuffmanNode(-1);
+                    }
                     node = node.right;
-                } 
+                }
+            }
+            if (lengths[i] > 0) {
+                node.value = i;
+            }
+        }
+    }
+
+    /** Writes a compact binary header describing the codes of this tree.
+     * 
+     * The header holds the MAGIC number followed by the code lengths, which is all
+     * that is needed to rebuild canonical codes, so this tree should have been made
+     * canonical first.
+     * 
+     * @param output - bit stream that the header is written to
+     */
+    public void writeHeader(BitOutputStream output) {
+        int[] lengths = new int[Unhuff.CHAR_MAX + 1];
+        getCodes(new long[lengths.length], lengths);
+        output.writeBits(MAGIC, Integer.SIZE);
+        writeCodeLengths(output, lengths);
+    }
+
+    /** Constructs a canonical Huffman tree from a header written by writeHeader.
+     * 
+     * @param input - bit stream positioned at the start of the header
+     * @throws IllegalArgumentException if the input does not start with a header
+     */
+    public HuffmanTree(BitInputStream input) {
+        int[] lengths = readHeader(input);
+        build(canonicalCodes(lengths), lengths);
+    }
+
+    /** Reads the code lengths of a header written by writeHeader, so that a
+     * HuffmanDecoder can be built from them without building a tree.
+     * 
+     * @param input - bit stream positioned at the start of the header
+     * @return array of code lengths, the pseudo-EOF marker last
+     * @throws IllegalArgumentException if the input does not start with a header
+     */
+    public static int[] readHeader(BitInputStream input) {
+        if ((int) readBits(input, Integer.SIZE) != MAGIC) {
+            throw new IllegalArgumentException("Not a canonical Huffman file");
+        }
+        return readCodeLengths(input, Unhuff.CHAR_MAX + 1);
+    }
+
+    /** Reads the codes of a file written by write into the supplied arrays, packed
+     * as in getCodes, so that a HuffmanDecoder can be built from them without
+     * building a tree.
+     * 
+     * @param input - input file containing the description of the Huffman tree
+     * @param codes - array indexed by ASCII value that receives the code bits
+     * @param lengths - array indexed by ASCII value that receives the code lengths
+     * @throws IllegalArgumentException if the file holds a value out of range or a
+     *         code that is empty, too long or not made of 0s and 1s
+     */
+    public static void readCodes(Scanner input, long[] codes, int[] lengths) {
+        while (input.hasNextLine()) {
+            int n = Integer.parseInt(input.nextLine());
+            String code = input.hasNextLine() ? input.nextLine() : "";
+            if (n < 0 || n >= lengths.length || code.isEmpty() || code.length() > Long.SIZE) {
+                throw new IllegalArgumentException("Bad code for " + n + ": " + code);
+            }
+            long bits = 0;
+            for (int i = 0; i < code.length(); i++) {
+                char bit = code.charAt(i);
+                if (bit != '0' && bit != '1') {
+                    throw new IllegalArgumentException("Bad code for " + n + ": " + code);
+                }
+                // the first character is the first bit, which goes lowest
+                bits |= (long) (bit - '0') << i;
+            }
+            codes[n] = bits;
+            lengths[n] = code.length();
+        }
+    }
+
+    /** Writes a table of code lengths to the supplied stream.
+     * 
+     * The last entry of lengths belongs to the pseudo-EOF marker. The other entries
+     * are written as a bitmap of the values that have a code, followed by the length
+     * of each of those codes and finally the length of the pseudo-EOF code.
+     * 
+     * @param output - bit stream that the lengths are written to
+     * @param lengths - array of code lengths, the pseudo-EOF marker last
+     */
+    public static void writeCodeLengths(BitOutputStream output, int[] lengths) {
+        int eof = lengths.length - 1;
+        for (int i = 0; i < eof; i++) {
+            output.writeBits(lengths[i] > 0 ? 1 : 0, 1);
+        }
+        for (int i = 0; i < eof; i++) {
+            if (lengths[i] > 0) {
+                output.writeBits(lengths[i], LENGTH_BITS);
+            }
+        }
+        output.writeBits(lengths[eof], LENGTH_BITS);
+    }
+
+    /** Reads a table of code lengths written by writeCodeLengths.
+     * 
+     * @param input - bit stream positioned at the start of the table
+     * @param size - number of values in the table, including the pseudo-EOF marker
+     * @return array of code lengths, the pseudo-EOF marker last
+     * @throws IllegalArgumentException if the table is truncated or its lengths
+     *         cannot form a prefix code
+     */
+    public static int[] readCodeLengths(BitInputStream input, int size) {
+        int eof = size - 1;
+        int[] lengths = new int[size];
+        for (int i = 0; i < eof; i++) {
+            lengths[i] = (int) readBits(input, 1);
+        }
+        for (int i = 0; i < eof; i++) {
+            if (lengths[i] > 0) {
+                lengths[i] = (int) readBits(input, LENGTH_BITS);
             }
-            value = node.value;
-            output.write(value);
-            node = root;
         }
+        lengths[eof] = (int) readBits(input, LENGTH_BITS);
+        countLengths(lengths);
+        return lengths;
+    }
+
+    /** Reads count bits from the stream, lowest bit first.
+     * 
+     * @param input - bit stream that the bits are read from
+     * @param count - number of bits to read
+     * @return the bits that were read
+     * @throws IllegalArgumentException if the stream ends first
+     */
+    private static long readBits(BitInputStream input, int count) {
+        long value = input.readBits(count);
+        if (value == -1) {
+            throw new IllegalArgumentException("Truncated Huffman header");
+        }
+        return value;
     }
+
     /** HuffmanNode class used to store values in the HuffmanTree. 
      * 
      * This class implements Comparable to sort HuffmanNodes into a Priority Queue by 
-     * their frequencies. The class has munltiple attributes: frequency, ASCII value and 
-     * bit code. As well as left and right child pointers. 
+     * their frequencies. The class has munltiple attributes: frequency and ASCII value. 
+     * As well as left and right child pointers. 
      * 
      */
     private class HuffmanNode implements Comparable<HuffmanNode> {
-        private int freq; 
+        private long freq; 
         private int value; 
-        private String bit;
 
         private HuffmanNode left; 
         private HuffmanNode right; 
@@ -214,7 +666,7 @@ public class HuffmanTree {
          * @param freq - frequency of character in text file 
          * @param value - ASCII value of character
          */
-        public HuffmanNode(int freq, int value){
+        public HuffmanNode(long freq, int value){
             this.freq = freq; 
             this.value = value;
             left = null;
@@ -232,7 +684,7 @@ public class HuffmanTree {
             right = null;
          
         }
-        private int getFreq(){
+        private long getFreq(){
             return freq;
         }
         
@@ -248,8 +700,7 @@ public class HuffmanTree {
         
         @Override
         public int compareTo(HuffmanNode o){
-            int dif = this.freq - o.freq; 
-            return dif;
+            return Long.compare(this.freq, o.freq);
         }
     }
 }
\ No newline at end of file
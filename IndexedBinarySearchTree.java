@@ -0,0 +1,477 @@
+/**
+ * Balanced binary search tree of ints whose nodes are indices into a store
+ * that a subclass provides.
+ *
+ * This is the same AVL tree as BinarySearchTree, with the same operations,
+ * but a node is a non-negative int and its key, children and level are read
+ * and written through the hooks below, so the tree itself holds no objects
+ * per node. There are no parent links: add and remove remember the path they
+ * walked down in a small stack and fix levels and balance along it on the
+ * way back up. Removed nodes go on a free list, threaded through their left
+ * links, and are reused before the store has to grow.
+ */
+public abstract class IndexedBinarySearchTree {
+	protected static final int NIL = -1;              // index of a missing node
+	protected static final int MAX_DEPTH = 64;        // above any AVL tree of 2^31 nodes
+
+	protected int root;
+	protected int size;
+	protected int used;    // nodes ever allocated; all indices below are taken or free
+	protected int free;    // first node of the free list
+
+	private final int[] path = new int[MAX_DEPTH];
+
+	/**
+	 * Constructs an empty tree.
+	 */
+	protected IndexedBinarySearchTree() {
+		root = NIL;
+		free = NIL;
+	}
+
+	/**
+	 * Returns the key of a node.
+	 *
+	 * @param node The index of the node.
+	 *
+	 * @return The key of the node.
+	 */
+	protected abstract int key(int node);
+
+	/**
+	 * Sets the key of a node.
+	 *
+	 * @param node The index of the node.
+	 * @param key The new key.
+	 */
+	protected abstract void setKey(int node, int key);
+
+	/**
+	 * Returns the left child of a node.
+	 *
+	 * @param node The index of the node.
+	 *
+	 * @return The index of the left child, or NIL.
+	 */
+	protected abstract int left(int node);
+
+	/**
+	 * Sets the left child of a node.
+	 *
+	 * @param node The index of the node.
+	 * @param child The index of the new left child, or NIL.
+	 */
+	protected abstract void setLeft(int node, int child);
+
+	/**
+	 * Returns the right child of a node.
+	 *
+	 * @param node The index of the node.
+	 *
+	 * @return The index of the right child, or NIL.
+	 */
+	protected abstract int right(int node);
+
+	/**
+	 * Sets the right child of a node.
+	 *
+	 * @param node The index of the node.
+	 * @param child The index of the new right child, or NIL.
+	 */
+	protected abstract void setRight(int node, int child);
+
+	/**
+	 * Returns the stored level of a node, where a leaf has level 0.
+	 *
+	 * @param node The index of the node.
+	 *
+	 * @return The level of the node.
+	 */
+	protected abstract int storedLevel(int node);
+
+	/**
+	 * Sets the level of a node.
+	 *
+	 * @param node The index of the node.
+	 * @param level The new level, below MAX_DEPTH.
+	 */
+	protected abstract void setLevel(int node, int level);
+
+	/**
+	 * Returns the number of nodes the store has room for.
+	 *
+	 * @return The number of nodes that can be allocated without growing.
+	 */
+	protected abstract int capacity();
+
+	/**
+	 * Makes room in the store for at least one more node.
+	 *
+	 * @throws IllegalStateException if the store cannot grow any further.
+	 */
+	protected abstract void grow();
+
+	/**
+	 * Called after add or remove has changed the tree, so that a subclass
+	 * can record the new root, size and free list. Does nothing by default.
+	 */
+	protected void modified() {
+	}
+
+	/**
+	 * Returns the number of keys in the tree.
+	 *
+	 * @return The number of keys in the tree.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the level of a node, where a leaf has level 0.
+	 *
+	 * @param node The index of the node, which may be NIL.
+	 *
+	 * @return The level of the node, or -1 if the node is NIL.
+	 */
+	private int level(int node) {
+		return node == NIL ? -1 : storedLevel(node);
+	}
+
+	/**
+	 * Updates the level of a node based on the levels
+	 * of the left and right children.
+	 *
+	 * @param node Node that will have its level updated.
+	 */
+	private void updateLevel(int node) {
+		setLevel(node, 1 + Math.max(level(left(node)), level(right(node))));
+	}
+
+	/**
+	 * Performs a left-side rotation around a node and its right child.
+	 *
+	 * @param top The node whose right child is rotated up.
+	 *
+	 * @return The new root of the subtree, which the caller links to the parent.
+	 */
+	private int rotateLeft(int top) {
+		int pivot = right(top);
+		setRight(top, left(pivot));
+		setLeft(pivot, top);
+		updateLevel(top);
+		updateLevel(pivot);
+
+		return pivot;
+	}
+
+	/**
+	 * Performs a right-side rotation around a node and its left child.
+	 *
+	 * @param top The node whose left child is rotated up.
+	 *
+	 * @return The new root of the subtree, which the caller links to the parent.
+	 */
+	private int rotateRight(int top) {
+		int pivot = left(top);
+		setLeft(top, right(pivot));
+		setRight(pivot, top);
+		updateLevel(top);
+		updateLevel(pivot);
+
+		return pivot;
+	}
+
+	/**
+	 * Rebalances a node by checking the height skew and performing
+	 * the appropriate rotations if necessary.
+	 *
+	 * @param node Node to be rebalanced.
+	 *
+	 * @return The new root of the subtree, which the caller links to the parent.
+	 */
+	private int rebalance(int node) {
+		updateLevel(node);
+		int left = left(node);
+		int right = right(node);
+		int skew = level(right) - level(left);
+		if(skew > 1) {
+			// Right-left case: first bring the inner grandchild up
+			if(level(right(right)) < level(left(right))) {
+				setRight(node, rotateRight(right));
+			}
+			return rotateLeft(node);
+		}
+		else if(skew < -1) {
+			// Left-right case: first bring the inner grandchild up
+			if(level(left(left)) < level(right(left))) {
+				setLeft(node, rotateLeft(left));
+			}
+			return rotateRight(node);
+		}
+
+		return node;
+	}
+
+	/**
+	 * Fixes the levels and balance of the nodes on the path, from the
+	 * deepest one up, after the subtree below them has changed.
+	 *
+	 * The walk stops as soon as a subtree keeps its old level, since nothing
+	 * above it can have changed then.
+	 *
+	 * @param depth The number of nodes on the path.
+	 */
+	private void rebalancePath(int depth) {
+		for(int i = depth - 1; i >= 0; i--) {
+			int node = path[i];
+			int oldLevel = storedLevel(node);
+			int top = rebalance(node);
+			if(top != node) {
+				replaceChild(i, node, top);
+			}
+			if(storedLevel(top) == oldLevel) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts a node in the place of the node at a position of the path.
+	 *
+	 * @param depth The position of the node being replaced on the path.
+	 * @param oldChild The node being replaced.
+	 * @param newChild The node taking its place, or NIL.
+	 */
+	private void replaceChild(int depth, int oldChild, int newChild) {
+		if(depth == 0) {
+			root = newChild;
+		}
+		else if(left(path[depth - 1]) == oldChild) {
+			setLeft(path[depth - 1], newChild);
+		}
+		else {
+			setRight(path[depth - 1], newChild);
+		}
+	}
+
+	/**
+	 * Returns a leaf holding a key, taken from the free list or, if that is
+	 * empty, from the end of the store, which grows when it is full.
+	 *
+	 * @param value The key of the leaf.
+	 *
+	 * @return The index of the leaf.
+	 */
+	private int allocate(int value) {
+		int node = free;
+		if(node != NIL) {
+			free = left(node);
+		}
+		else {
+			if(used == capacity()) {
+				grow();
+			}
+			node = used++;
+		}
+
+		setKey(node, value);
+		setLevel(node, 0);
+		setLeft(node, NIL);
+		setRight(node, NIL);
+
+		return node;
+	}
+
+	/**
+	 * Adds an element into the tree.
+	 *
+	 * @param value The element to be inserted in the tree.
+	 *
+	 * @return True if the element was inserted; false if the value was already present.
+	 */
+	public boolean add(int value) {
+		// Walk down to the node that gets the new leaf as a child
+		int depth = 0;
+		int node = root;
+		while(node != NIL) {
+			path[depth++] = node;
+			int key = key(node);
+			if(value < key) {
+				node = left(node);
+			}
+			else if(value > key) {
+				node = right(node);
+			}
+			else {
+				return false;
+			}
+		}
+
+		int leaf = allocate(value);
+		if(depth == 0) {
+			root = leaf;
+		}
+		else if(value < key(path[depth - 1])) {
+			setLeft(path[depth - 1], leaf);
+		}
+		else {
+			setRight(path[depth - 1], leaf);
+		}
+		size++;
+
+		// The subtree has grown, so fix levels and balance on the way up
+		rebalancePath(depth);
+		modified();
+
+		return true;
+	}
+
+	/**
+	 * Returns true if a given value is contained in the tree.
+	 *
+	 * @param value The value being checked for containment.
+	 *
+	 * @return True if the value is present; false otherwise.
+	 */
+	public boolean contains(int value) {
+		int node = root;
+		while(node != NIL) {
+			int key = key(node);
+			if(value == key) {
+				return true;
+			}
+			node = value < key ? left(node) : right(node);
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the minimum value of the tree.
+	 *
+	 * @return The minimum value of the tree, or -1 if the tree is empty.
+	 */
+	public int minimumValue() {
+		if(root == NIL) {
+			return -1;
+		}
+
+		int node = root;
+		while(left(node) != NIL) {
+			node = left(node);
+		}
+
+		return key(node);
+	}
+
+	/**
+	 * Returns the maximum value of the tree.
+	 *
+	 * @return The maximum value of the tree, or -1 if the tree is empty.
+	 */
+	public int maximumValue() {
+		if(root == NIL) {
+			return -1;
+		}
+
+		int node = root;
+		while(right(node) != NIL) {
+			node = right(node);
+		}
+
+		return key(node);
+	}
+
+	/**
+	 * Removes an element from the tree.
+	 *
+	 * @param value Value to be removed from the tree.
+	 *
+	 * @return True if the value was removed; false if the value was not found.
+	 */
+	public boolean remove(int value) {
+		int depth = 0;
+		int node = root;
+		while(node != NIL && value != key(node)) {
+			path[depth++] = node;
+			node = value < key(node) ? left(node) : right(node);
+		}
+		if(node == NIL) {
+			return false;
+		}
+
+		// A node with two children takes the key of its successor,
+		// which has no left child, and the successor is removed instead
+		if(left(node) != NIL && right(node) != NIL) {
+			int target = node;
+			path[depth++] = node;
+			node = right(node);
+			while(left(node) != NIL) {
+				path[depth++] = node;
+				node = left(node);
+			}
+			setKey(target, key(node));
+		}
+
+		int child = left(node) != NIL ? left(node) : right(node);
+		replaceChild(depth, node, child);
+
+		setLeft(node, free);
+		free = node;
+		size--;
+
+		rebalancePath(depth);
+		modified();
+
+		return true;
+	}
+
+	/**
+	 * Returns true if and only if the keys are in order and the levels and
+	 * skews of all nodes are correct.
+	 *
+	 * @return True iff the tree is a valid AVL tree holding size keys.
+	 */
+	protected boolean testTree() {
+		// Walk the tree in order with an explicit stack
+		int[] pending = new int[MAX_DEPTH];
+		int depth = 0;
+		int count = 0;
+		long previous = Long.MIN_VALUE;
+		int node = root;
+		while(node != NIL || depth > 0) {
+			while(node != NIL) {
+				pending[depth++] = node;
+				node = left(node);
+			}
+			node = pending[--depth];
+
+			int l = level(left(node));
+			int r = level(right(node));
+			if(key(node) <= previous || storedLevel(node) != 1 + Math.max(l, r)
+			   || Math.abs(r - l) > 1) {
+				return false;
+			}
+			previous = key(node);
+			count++;
+
+			node = right(node);
+		}
+
+		return count == size;
+	}
+
+	/**
+	 * Returns the heap in use after a garbage collection.
+	 *
+	 * @return The number of bytes in use.
+	 */
+	protected static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
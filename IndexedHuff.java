@@ -0,0 +1,82 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/** Compresses files into canonical .huff files with a sparse sync-point index.
+  *
+  * The file starts exactly like one written by Huff -canonical, so Unhuff reads
+  * it as usual, but after the padded encoded data comes an index that records,
+  * for every interval bytes of the original file, the bit offset in the .huff
+  * file at which the code of that byte starts. IndexedHuffReader uses it to
+  * decode any range of the original file by starting at the nearest sync
+  * point before it. The trailer, with all numbers little-endian, is:
+  *
+  *   sync points  the bit offset of original byte i * interval (long), for
+  *                every i from 0 up to the last byte
+  *   footer       input length (long), interval (int), number of sync
+  *                points (int), MAGIC
+  */
+public class IndexedHuff {
+
+    public static final int MAGIC = 0x58465548;             // "HUFX" in file order
+    public static final int DEFAULT_INTERVAL = 64 << 10;    // input bytes per sync point
+    static final int FOOTER_SIZE = Long.BYTES + 3 * Integer.BYTES;
+    private static final int CHAR_MAX = 256;
+    private static final int BYTE_SIZE = 8;
+
+
+    /** Compresses the input file into the output file and appends the index.
+      *
+      * @param inputFileName the name of the file to be compressed.
+      * @param outputFileName the name of the .huff file to be written.
+      * @param interval the number of input bytes between sync points.
+      * @throws IOException if either file cannot be opened.
+      * @throws IllegalArgumentException if interval is not positive.
+      */
+    public static void compress(String inputFileName, String outputFileName, int interval)
+        throws IOException {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Illegal interval: " + interval);
+        ByteBuffer[] input = Huff.mapFile(inputFileName);
+        long length = 0;
+        for (ByteBuffer buffer : input)
+            length += buffer.remaining();
+        HuffmanTree tree = new HuffmanTree(FrequencyCounter.count(input),
+                                           HuffmanTree.DEFAULT_MAX_LENGTH);
+        long[] codes = new long[CHAR_MAX + 1];
+        int[] lengths = new int[CHAR_MAX + 1];
+        tree.getCodes(codes, lengths);
+
+        // Write the canonical header and the data, noting the bit offset of
+        // every interval-th byte
+        BitOutputStream output = new BitOutputStream(
+            new BufferedOutputStream(new FileOutputStream(outputFileName)));
+        tree.writeHeader(output);
+        long[] syncPoints = new long[(int) ((length + interval - 1) / interval)];
+        long position = 0;
+        int sync = 0;
+        for (ByteBuffer buffer : input) {
+            int from = buffer.position();
+            while (from < buffer.limit()) {
+                long next = (position / interval + 1) * interval;
+                int to = (int) Math.min(buffer.limit(), from + (next - position));
+                if (position % interval == 0)
+                    syncPoints[sync++] = output.bitsWritten();
+                Huff.encode(buffer, from, to, codes, lengths, output);
+                position += to - from;
+                from = to;
+            }
+        }
+        output.writeBits(codes[CHAR_MAX], lengths[CHAR_MAX]);
+        output.writeBits(0, (int) (-output.bitsWritten() & (BYTE_SIZE - 1)));
+
+        // Write the index and footer
+        for (long syncPoint : syncPoints)
+            output.writeBits(syncPoint, Long.SIZE);
+        output.writeBits(length, Long.SIZE);
+        output.writeBits(interval, Integer.SIZE);
+        output.writeBits(syncPoints.length, Integer.SIZE);
+        output.writeBits(MAGIC, Integer.SIZE);
+        output.close();
+    }
+}
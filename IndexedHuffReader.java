@@ -0,0 +1,163 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/** Random access reader for canonical .huff files.
+  *
+  * If the file ends with an IndexedHuff index, decodeRange starts decoding at
+  * the last sync point at or before the range, so only up to one interval of
+  * unwanted bytes is decoded no matter where the range lies. Files without an
+  * index are decoded from the start. A single reader may be used from several
+  * threads.
+  */
+public class IndexedHuffReader {
+
+    private static final int CHAR_MAX = 256;
+    private static final int BYTE_SIZE = 8;
+
+    private String fileName;        // the .huff file
+    private HuffmanDecoder decoder; // decoder for the codes in the header
+    private long length;            // length of the original file, or -1
+    private int interval;           // original bytes between sync points
+    private long[] syncPoints;      // bit offset of every interval-th byte, or null
+
+
+    /** Opens the specified canonical .huff file and reads its header and, if
+      * there is one, its index.
+      *
+      * @param fileName the name of the .huff file.
+      * @throws IOException if the file cannot be read or is not a canonical
+      *         .huff file.
+      */
+    public IndexedHuffReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        BitInputStream header = new BitInputStream(new FileInputStream(fileName));
+        try {
+            int[] lengths = HuffmanTree.readHeader(header);
+            decoder = new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage() + ": " + fileName);
+        } finally {
+            header.close();
+        }
+
+        // Read the footer, then the index it describes
+        length = -1;
+        FileChannel channel = FileChannel.open(Paths.get(fileName));
+        try {
+            long size = channel.size();
+            if (size < IndexedHuff.FOOTER_SIZE)
+                return;
+            ByteBuffer footer = readBytes(channel, size - IndexedHuff.FOOTER_SIZE,
+                                          IndexedHuff.FOOTER_SIZE);
+            long footerLength = footer.getLong();
+            int footerInterval = footer.getInt();
+            int count = footer.getInt();
+            if (footer.getInt() != IndexedHuff.MAGIC)
+                return;
+            if (footerLength < 0 || footerInterval <= 0 || count < 0
+                || count != (footerLength + footerInterval - 1) / footerInterval
+                || (long) count * Long.BYTES > size - IndexedHuff.FOOTER_SIZE)
+                throw new IOException("Corrupt Huffman index: " + fileName);
+            ByteBuffer index = readBytes(channel, size - IndexedHuff.FOOTER_SIZE
+                                         - (long) count * Long.BYTES, count * Long.BYTES);
+            syncPoints = new long[count];
+            for (int i = 0; i < count; i++)
+                syncPoints[i] = index.getLong();
+            length = footerLength;
+            interval = footerInterval;
+        } finally {
+            channel.close();
+        }
+    }
+
+
+    /** Returns whether the file has a sync-point index.
+      *
+      * @return true if ranges can be decoded without decoding the prefix.
+      */
+    public boolean isIndexed() {
+        return syncPoints != null;
+    }
+
+
+    /** Returns the length of the original file, if the file has an index.
+      *
+      * @return the number of bytes in the original file, or -1 if unknown.
+      */
+    public long length() {
+        return length;
+    }
+
+
+    /** Decodes a range of the original file.
+      *
+      * @param offset the offset of the first byte of the range.
+      * @param length the number of bytes in the range.
+      * @throws IOException if the file cannot be read or is corrupt.
+      * @throws IndexOutOfBoundsException if the range is not within the file.
+      * @return the original bytes of the range.
+      */
+    public byte[] decodeRange(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || (isIndexed() && offset + length > this.length))
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length
+                                                + " outside 0.." + this.length);
+        if (length == 0)
+            return new byte[0];
+        BitInputStream input;
+        long skip;
+        if (isIndexed()) {
+            // Start at the nearest sync point at or before the range
+            int sync = (int) (offset / interval);
+            long bit = syncPoints[sync];
+            FileChannel channel = FileChannel.open(Paths.get(fileName));
+            channel.position(bit / BYTE_SIZE);
+            input = new BitInputStream(Channels.newInputStream(channel));
+            input.readBits((int) (bit % BYTE_SIZE));
+            skip = offset - (long) sync * interval;
+        } else {
+            // Start right after the header
+            input = new BitInputStream(new FileInputStream(fileName));
+            HuffmanTree.readHeader(input);
+            skip = offset;
+        }
+
+        byte[] result = new byte[length];
+        try {
+            for (long i = 0; i < skip + length; i++) {
+                int value = decoder.decode(input);
+                if (value == CHAR_MAX && !isIndexed())
+                    throw new IndexOutOfBoundsException("Range " + offset + "+" + length
+                                                        + " outside 0.." + i);
+                if (value < 0 || value >= CHAR_MAX)
+                    throw new IOException("Huffman file is truncated or corrupt: " + fileName);
+                if (i >= skip)
+                    result[(int) (i - skip)] = (byte) value;
+            }
+        } finally {
+            input.close();
+        }
+        return result;
+    }
+
+
+    /** Reads count bytes of a file starting at the supplied position.
+      *
+      * @param channel the file to be read.
+      * @param position the offset of the first byte to be read.
+      * @param count the number of bytes to be read.
+      * @throws IOException if the bytes cannot be read.
+      * @return a little-endian buffer holding the bytes.
+      */
+    private static ByteBuffer readBytes(FileChannel channel, long position, int count)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Huffman file is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
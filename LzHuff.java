@@ -0,0 +1,376 @@
+import java.io.*;
+import java.util.*;
+
+/** Compresses data with an LZ77 front end in front of Huffman coding.
+  *
+  * Repeated strings are replaced by matches: the length of the string and its
+  * distance back to an earlier copy within the last windowSize bytes. Matches
+  * are found with hash chains: head holds the most recent position at which
+  * each hash of MIN_MATCH bytes was seen, and prev links every position in
+  * the window to the previous one with the same hash. At most MAX_CHAIN
+  * candidates are tried per position and the longest match wins.
+  *
+  * The resulting literals and matches are Huffman coded a block of
+  * BLOCK_TOKENS tokens at a time, with three sets of canonical codes per
+  * block, built from the counts of that block:
+  *
+  *   literals   the 256 byte values, MATCH for a match, and the pseudo-EOF,
+  *              which ends the block
+  *   lengths    the bucket of the match length minus MIN_MATCH
+  *   distances  the bucket of the match distance minus one
+  *
+  * A bucket stands for a range of values that starts at a power of two (or
+  * its sum with the next lower power of two); the bits that pick the value
+  * within the range follow the code of the bucket. The stream starts with
+  * MAGIC and the number of bits of the window size, both as little-endian
+  * ints, and each block starts with one bit that is set for the last block,
+  * followed by the code lengths of its three sets of codes.
+  */
+public class LzHuff {
+
+    public static final int MAGIC = 0x4C465548;              // "HUFL" in file order
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 16;   // bytes searched for matches
+    public static final int MIN_WINDOW_SIZE = 1 << 10;
+    public static final int MAX_WINDOW_SIZE = 1 << 24;
+    private static final int CHAR_MAX = 256;
+    private static final int MATCH = CHAR_MAX;               // literal symbol for a match
+    private static final int MIN_MATCH = 3;                  // shortest match coded
+    private static final int MAX_MATCH = 258;                // longest match coded
+    private static final int LENGTH_BUCKETS = bucket(MAX_MATCH - MIN_MATCH) + 1;
+    private static final int MAX_CHAIN = 64;                 // candidates tried per position
+    private static final int HASH_BITS = 16;                 // bits of the hash of MIN_MATCH bytes
+    private static final int BLOCK_TOKENS = 1 << 16;         // literals and matches per block
+    private static final int BUFFER_SIZE = 1 << 16;          // bytes decoded before writing
+
+
+    /** Returns the bucket that holds the supplied value.
+      *
+      * Values 0 to 3 have buckets of their own; larger values v with highest
+      * bit e + 1 fall into bucket 2e + 2 or 2e + 3, depending on the next
+      * lower bit, followed by e extra bits.
+      *
+      * @param value a value of at least 0.
+      * @return the bucket of the value.
+      */
+    private static int bucket(int value) {
+        if (value < 4)
+            return value;
+        int extra = 30 - Integer.numberOfLeadingZeros(value);
+        return 2 * extra + 2 + ((value >>> extra) & 1);
+    }
+
+
+    /** Returns the number of extra bits that follow the code of a bucket.
+      *
+      * @param bucket the bucket.
+      * @return the number of bits that pick a value within the bucket.
+      */
+    private static int extraBits(int bucket) {
+        return bucket < 4 ? 0 : (bucket - 2) / 2;
+    }
+
+
+    /** Returns the smallest value in a bucket.
+      *
+      * @param bucket the bucket.
+      * @return the value whose extra bits are all 0.
+      */
+    private static int base(int bucket) {
+        return bucket < 4 ? bucket : (2 | (bucket & 1)) << extraBits(bucket);
+    }
+
+
+    /** Returns the number of distance buckets for a window size.
+      *
+      * @param windowBits the number of bits of the window size.
+      * @return the number of buckets up to that of distance windowSize.
+      */
+    private static int distanceBuckets(int windowBits) {
+        return bucket((1 << windowBits) - 1) + 1;
+    }
+
+
+    /** Compresses the input stream into the output stream.
+      *
+      * @param input the data to be compressed, read to its end.
+      * @param output the stream that receives the compressed data; it is
+      *        closed at the end.
+      * @param windowSize how far back matches may reach; a power of two from
+      *        MIN_WINDOW_SIZE to MAX_WINDOW_SIZE.
+      * @throws IOException if either stream fails.
+      * @throws IllegalArgumentException if windowSize is not valid.
+      */
+    public static void compress(InputStream input, OutputStream output, int windowSize)
+        throws IOException {
+        if (Integer.bitCount(windowSize) != 1 || windowSize < MIN_WINDOW_SIZE
+            || windowSize > MAX_WINDOW_SIZE)
+            throw new IllegalArgumentException("Illegal window size: " + windowSize);
+        int windowBits = Integer.numberOfTrailingZeros(windowSize);
+        int mask = windowSize - 1;
+        BitOutputStream bits = new BitOutputStream(output);
+        bits.writeBits(MAGIC, Integer.SIZE);
+        bits.writeBits(windowBits, Integer.SIZE);
+
+        // The data buffer holds the window behind the current position and
+        // the input ahead of it; when the lookahead runs short, the older half
+        // is dropped and every stored position moves back by windowSize
+        byte[] data = new byte[2 * windowSize];
+        int[] head = new int[1 << HASH_BITS];
+        int[] prev = new int[windowSize];
+        Arrays.fill(head, -1);
+        int[] tokenLengths = new int[BLOCK_TOKENS];  // 0 for a literal
+        int[] tokenValues = new int[BLOCK_TOKENS];   // byte value or distance
+        int tokens = 0;
+        int end = input.readNBytes(data, 0, data.length);
+        boolean eof = end < data.length;
+        int pos = 0;
+        while (pos < end) {
+            if (!eof && end - pos <= MAX_MATCH) {
+                System.arraycopy(data, windowSize, data, 0, end - windowSize);
+                end -= windowSize;
+                pos -= windowSize;
+                for (int i = 0; i < head.length; i++)
+                    head[i] = head[i] >= windowSize ? head[i] - windowSize : -1;
+                for (int i = 0; i < prev.length; i++)
+                    prev[i] = prev[i] >= windowSize ? prev[i] - windowSize : -1;
+                int n = input.readNBytes(data, end, data.length - end);
+                eof = n < data.length - end;
+                end += n;
+            }
+
+            // Find the longest match among the candidates with the same hash
+            int bestLength = 0;
+            int bestDistance = 0;
+            int maxLength = Math.min(MAX_MATCH, end - pos);
+            if (maxLength >= MIN_MATCH) {
+                int hash = hash(data, pos);
+                int candidate = head[hash];
+                int limit = Math.max(pos - windowSize, -1);
+                for (int chain = MAX_CHAIN; candidate > limit && chain > 0; chain--) {
+                    if (data[candidate + bestLength] == data[pos + bestLength]) {
+                        int length = 0;
+                        while (length < maxLength && data[candidate + length] == data[pos + length])
+                            length++;
+                        if (length > bestLength) {
+                            bestLength = length;
+                            bestDistance = pos - candidate;
+                            if (length == maxLength)
+                                break;
+                        }
+                    }
+                    candidate = prev[candidate & mask];
+                }
+                prev[pos & mask] = head[hash];
+                head[hash] = pos;
+            }
+
+            if (bestLength >= MIN_MATCH) {
+                tokenLengths[tokens] = bestLength;
+                tokenValues[tokens] = bestDistance;
+                // Add the positions inside the match to the hash chains
+                for (int i = pos + 1; i < pos + bestLength && i + MIN_MATCH <= end; i++) {
+                    int hash = hash(data, i);
+                    prev[i & mask] = head[hash];
+                    head[hash] = i;
+                }
+                pos += bestLength;
+            } else {
+                tokenLengths[tokens] = 0;
+                tokenValues[tokens] = data[pos] & 0xFF;
+                pos++;
+            }
+            if (++tokens == BLOCK_TOKENS) {
+                writeBlock(bits, tokenLengths, tokenValues, tokens, windowBits, pos == end && eof);
+                tokens = 0;
+            }
+        }
+        if (tokens > 0 || end == 0)
+            writeBlock(bits, tokenLengths, tokenValues, tokens, windowBits, true);
+        bits.close();
+    }
+
+
+    /** Returns the hash of the MIN_MATCH bytes at the supplied position.
+      *
+      * @param data the buffer holding the bytes.
+      * @param pos the position of the first byte.
+      * @return a hash of HASH_BITS bits.
+      */
+    private static int hash(byte[] data, int pos) {
+        int key = (data[pos] & 0xFF) << 16 | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF);
+        return (key * 0x9E3779B1) >>> (Integer.SIZE - HASH_BITS);
+    }
+
+
+    /** Huffman codes a block of tokens with codes built from its own counts.
+      *
+      * @param output the stream that receives the block.
+      * @param tokenLengths the match length of each token, or 0 for a literal.
+      * @param tokenValues the byte value or match distance of each token.
+      * @param tokens the number of tokens in the block.
+      * @param windowBits the number of bits of the window size.
+      * @param last whether this is the last block of the stream.
+      */
+    private static void writeBlock(BitOutputStream output, int[] tokenLengths, int[] tokenValues,
+                                   int tokens, int windowBits, boolean last) {
+        long[] literalCount = new long[CHAR_MAX + 1];
+        long[] lengthCount = new long[LENGTH_BUCKETS];
+        long[] distanceCount = new long[distanceBuckets(windowBits)];
+        for (int i = 0; i < tokens; i++) {
+            if (tokenLengths[i] == 0) {
+                literalCount[tokenValues[i]]++;
+            } else {
+                literalCount[MATCH]++;
+                lengthCount[bucket(tokenLengths[i] - MIN_MATCH)]++;
+                distanceCount[bucket(tokenValues[i] - 1)]++;
+            }
+        }
+        int[] literalLengths = HuffmanTree.codeLengths(literalCount, HuffmanTree.DEFAULT_MAX_LENGTH);
+        int[] lengthLengths = HuffmanTree.codeLengths(lengthCount, HuffmanTree.DEFAULT_MAX_LENGTH);
+        int[] distanceLengths = HuffmanTree.codeLengths(distanceCount, HuffmanTree.DEFAULT_MAX_LENGTH);
+        long[] literalCodes = HuffmanTree.canonicalCodes(literalLengths);
+        long[] lengthCodes = HuffmanTree.canonicalCodes(lengthLengths);
+        long[] distanceCodes = HuffmanTree.canonicalCodes(distanceLengths);
+
+        output.writeBits(last ? 1 : 0, 1);
+        HuffmanTree.writeCodeLengths(output, literalLengths);
+        HuffmanTree.writeCodeLengths(output, lengthLengths);
+        HuffmanTree.writeCodeLengths(output, distanceLengths);
+        for (int i = 0; i < tokens; i++) {
+            int value = tokenValues[i];
+            if (tokenLengths[i] == 0) {
+                output.writeBits(literalCodes[value], literalLengths[value]);
+            } else {
+                output.writeBits(literalCodes[MATCH], literalLengths[MATCH]);
+                int length = tokenLengths[i] - MIN_MATCH;
+                int bucket = bucket(length);
+                output.writeBits(lengthCodes[bucket], lengthLengths[bucket]);
+                output.writeBits(length - base(bucket), extraBits(bucket));
+                int distance = value - 1;
+                bucket = bucket(distance);
+                output.writeBits(distanceCodes[bucket], distanceLengths[bucket]);
+                output.writeBits(distance - base(bucket), extraBits(bucket));
+            }
+        }
+        int eof = literalLengths.length - 1;
+        output.writeBits(literalCodes[eof], literalLengths[eof]);
+    }
+
+
+    /** Uncompresses the input stream, as written by compress, into the output
+      * stream.
+      *
+      * @param input the compressed data.
+      * @param output the stream that receives the original data; it is closed
+      *        at the end.
+      * @throws IOException if either stream fails, or the input is not an LZ77
+      *         Huffman stream or is corrupt.
+      */
+    public static void decompress(InputStream input, OutputStream output) throws IOException {
+        BitInputStream bits = new BitInputStream(input);
+        try {
+            if ((int) bits.readBits(Integer.SIZE) != MAGIC)
+                throw new IOException("Not an LZ77 Huffman stream");
+            int windowBits = (int) bits.readBits(Integer.SIZE);
+            if (windowBits < Integer.numberOfTrailingZeros(MIN_WINDOW_SIZE)
+                || windowBits > Integer.numberOfTrailingZeros(MAX_WINDOW_SIZE))
+                throw new IOException("Illegal window size: 2^" + windowBits);
+            int mask = (1 << windowBits) - 1;
+            byte[] window = new byte[1 << windowBits]; // the last bytes written, cyclically
+            long written = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count = 0;
+
+            boolean last = false;
+            while (!last) {
+                last = readBits(bits, 1) == 1;
+                HuffmanDecoder literals = readDecoder(bits, CHAR_MAX + 2);
+                HuffmanDecoder lengths = readDecoder(bits, LENGTH_BUCKETS + 1);
+                HuffmanDecoder distances = readDecoder(bits, distanceBuckets(windowBits) + 1);
+                while (true) {
+                    int symbol = literals.decode(bits);
+                    int length;
+                    int distance;
+                    if (symbol < 0) {
+                        throw new IOException("LZ77 Huffman stream is corrupt after "
+                                              + written + " bytes");
+                    } else if (symbol < CHAR_MAX) {
+                        length = 1;
+                        distance = 0;
+                    } else if (symbol == MATCH) {
+                        length = MIN_MATCH + readValue(bits, lengths, LENGTH_BUCKETS);
+                        distance = 1 + readValue(bits, distances, distanceBuckets(windowBits));
+                        if (distance > written || distance > window.length)
+                            throw new IOException("LZ77 Huffman stream is corrupt: distance "
+                                                  + distance + " after " + written + " bytes");
+                    } else {
+                        break;
+                    }
+
+                    // Copy a literal, or a match from the window, byte by byte,
+                    // since a match may overlap the bytes it produces
+                    for (int i = 0; i < length; i++) {
+                        byte b = distance == 0 ? (byte) symbol
+                                               : window[(int) (written - distance) & mask];
+                        window[(int) written & mask] = b;
+                        written++;
+                        buffer[count++] = b;
+                        if (count == buffer.length) {
+                            output.write(buffer, 0, count);
+                            count = 0;
+                        }
+                    }
+                }
+            }
+            output.write(buffer, 0, count);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("LZ77 Huffman stream is corrupt: " + e.getMessage());
+        } finally {
+            output.close();
+        }
+    }
+
+
+    /** Reads a bucket with the supplied decoder, and its extra bits.
+      *
+      * @param input the stream positioned at the code of the bucket.
+      * @param decoder the decoder for the buckets.
+      * @param buckets the number of valid buckets.
+      * @throws IOException if the input ends or holds an invalid bucket.
+      * @return the value picked by the bucket and its extra bits.
+      */
+    private static int readValue(BitInputStream input, HuffmanDecoder decoder, int buckets)
+        throws IOException {
+        int bucket = decoder.decode(input);
+        if (bucket < 0 || bucket >= buckets)
+            throw new IOException("LZ77 Huffman stream is corrupt: bad bucket " + bucket);
+        return base(bucket) + (int) readBits(input, extraBits(bucket));
+    }
+
+
+    /** Reads count bits, failing if the input has fewer left.
+      *
+      * @param input the stream to be read.
+      * @param count the number of bits to be read.
+      * @throws IOException if the input ends first.
+      * @return the bits, first bit lowest.
+      */
+    private static long readBits(BitInputStream input, int count) throws IOException {
+        long bits = input.readBits(count);
+        if (bits < 0)
+            throw new EOFException("LZ77 Huffman stream is truncated");
+        return bits;
+    }
+
+
+    /** Reads a table of code lengths and returns a decoder for its codes.
+      *
+      * @param input the stream positioned at the code lengths.
+      * @param size the number of symbols, including the pseudo-EOF.
+      * @return a decoder for the canonical codes with those lengths.
+      */
+    private static HuffmanDecoder readDecoder(BitInputStream input, int size) {
+        int[] lengths = HuffmanTree.readCodeLengths(input, size);
+        return new HuffmanDecoder(HuffmanTree.canonicalCodes(lengths), lengths);
+    }
+}
@@ -0,0 +1,366 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Balanced binary search tree of ints kept outside the Java heap.
+ *
+ * The nodes of this IndexedBinarySearchTree live in buffers of CHUNK_NODES
+ * nodes each, either direct buffers or pieces of a memory-mapped file, so
+ * the heap holds only the array of buffers however many keys there are. The
+ * tree grows by adding a buffer, never by copying, and add throws an
+ * UncheckedIOException if a mapped file cannot be extended. A node takes
+ * NODE_SIZE bytes, all numbers little-endian:
+ *
+ *   key          the key (int)
+ *   left, right  the indices of the children, or -1 (int each)
+ *   level        the level, where a leaf has level 0 (int)
+ *
+ * A tree opened on a file starts with a header of HEADER_SIZE bytes holding
+ * MAGIC, the root, the number of keys, the number of nodes ever allocated
+ * and the first node of the free list (ints), followed by the nodes, so a
+ * tree that was closed (or forced) opens again at once, without rebuilding.
+ * Writes go straight to the mapped file and a crash between the update of
+ * a node and of the header may leave the file inconsistent; force makes a
+ * consistent state durable.
+ */
+public class OffHeapBinarySearchTree extends IndexedBinarySearchTree implements Closeable {
+	public static final int MAGIC = 0x4F545342;               // "BSTO" in file order
+	public static final int NODE_SIZE = 16;
+	public static final int HEADER_SIZE = 64;
+	public static final int CHUNK_NODES = 1 << 18;            // nodes per buffer (4 MB)
+
+	private static final int CHUNK_SHIFT = 18;
+	private static final int CHUNK_BYTES = CHUNK_NODES * NODE_SIZE;
+
+	// Offsets of the fields of a node
+	private static final int KEY = 0;
+	private static final int LEFT = 4;
+	private static final int RIGHT = 8;
+	private static final int LEVEL = 12;
+
+	// Offsets of the fields of the header
+	private static final int ROOT_FIELD = 4;
+	private static final int SIZE_FIELD = 8;
+	private static final int USED_FIELD = 12;
+	private static final int FREE_FIELD = 16;
+
+	private final FileChannel channel;   // file the buffers are mapped from, or null
+	private final ByteBuffer header;
+	private ByteBuffer[] chunks;
+	private int chunkCount;
+
+	/**
+	 * Constructs an empty tree in direct buffers, which is lost when the tree
+	 * is no longer used.
+	 */
+	public OffHeapBinarySearchTree() {
+		channel = null;
+		header = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		chunks = new ByteBuffer[1];
+		writeHeader();
+	}
+
+	/**
+	 * Constructs a tree mapped from a file, reading its header.
+	 *
+	 * @param channel The open file.
+	 * @param fileName The name of the file, for error messages.
+	 *
+	 * @throws IOException if the file cannot be mapped or is not a valid tree.
+	 */
+	private OffHeapBinarySearchTree(FileChannel channel, String fileName) throws IOException {
+		this.channel = channel;
+		// Mapping the header read-write extends a shorter file, so check first
+		long fileSize = channel.size();
+		if(fileSize != 0 && fileSize < HEADER_SIZE) {
+			throw new IOException("Not a binary search tree file: " + fileName);
+		}
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE)
+		                .order(ByteOrder.LITTLE_ENDIAN);
+		chunks = new ByteBuffer[1];
+		if(fileSize == 0) {
+			writeHeader();
+			return;
+		}
+
+		if(header.getInt(0) != MAGIC) {
+			throw new IOException("Not a binary search tree file: " + fileName);
+		}
+		root = header.getInt(ROOT_FIELD);
+		size = header.getInt(SIZE_FIELD);
+		used = header.getInt(USED_FIELD);
+		free = header.getInt(FREE_FIELD);
+		int needed = (int) ((used + (long) CHUNK_NODES - 1) / CHUNK_NODES);
+		if(used < 0 || size < 0 || size > used || root < NIL || root >= used
+		   || free < NIL || free >= used
+		   || fileSize < HEADER_SIZE + (long) needed * CHUNK_BYTES) {
+			throw new IOException("Corrupt binary search tree file: " + fileName);
+		}
+		while(chunkCount < needed) {
+			addChunk();
+		}
+	}
+
+	/**
+	 * Opens the tree stored in a file, creating an empty one if the file
+	 * does not exist or is empty.
+	 *
+	 * @param fileName The name of the file.
+	 *
+	 * @throws IOException if the file cannot be opened or is not a valid tree.
+	 *
+	 * @return The tree, which must be closed to release the file.
+	 */
+	public static OffHeapBinarySearchTree open(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+		                                       StandardOpenOption.WRITE,
+		                                       StandardOpenOption.CREATE);
+		try {
+			return new OffHeapBinarySearchTree(channel, fileName);
+		} catch(IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes the root, size and free list to the header.
+	 */
+	private void writeHeader() {
+		header.putInt(0, MAGIC);
+		header.putInt(ROOT_FIELD, root);
+		header.putInt(SIZE_FIELD, size);
+		header.putInt(USED_FIELD, used);
+		header.putInt(FREE_FIELD, free);
+	}
+
+	/**
+	 * Adds a buffer for the next CHUNK_NODES nodes, extending the file if the
+	 * tree is mapped from one.
+	 *
+	 * @throws IOException if the file cannot be extended.
+	 */
+	private void addChunk() throws IOException {
+		if((long) (chunkCount + 1) * CHUNK_NODES > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Tree is full");
+		}
+		ByteBuffer chunk;
+		if(channel == null) {
+			chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+		}
+		else {
+			chunk = channel.map(FileChannel.MapMode.READ_WRITE,
+			                    HEADER_SIZE + (long) chunkCount * CHUNK_BYTES, CHUNK_BYTES);
+		}
+		if(chunkCount == chunks.length) {
+			chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+		}
+		chunks[chunkCount++] = chunk.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns the number of bytes of memory or file the nodes take.
+	 *
+	 * @return The size of all buffers of nodes.
+	 */
+	public long capacityBytes() {
+		return (long) chunkCount * CHUNK_BYTES;
+	}
+
+	/**
+	 * Returns a field of a node.
+	 *
+	 * @param node The index of the node.
+	 * @param field The offset of the field in the node.
+	 *
+	 * @return The value of the field.
+	 */
+	private int get(int node, int field) {
+		return chunks[node >>> CHUNK_SHIFT].getInt((node & (CHUNK_NODES - 1)) * NODE_SIZE + field);
+	}
+
+	/**
+	 * Sets a field of a node.
+	 *
+	 * @param node The index of the node.
+	 * @param field The offset of the field in the node.
+	 * @param value The new value of the field.
+	 */
+	private void set(int node, int field, int value) {
+		chunks[node >>> CHUNK_SHIFT].putInt((node & (CHUNK_NODES - 1)) * NODE_SIZE + field, value);
+	}
+
+	@Override
+	protected int key(int node) {
+		return get(node, KEY);
+	}
+
+	@Override
+	protected void setKey(int node, int key) {
+		set(node, KEY, key);
+	}
+
+	@Override
+	protected int left(int node) {
+		return get(node, LEFT);
+	}
+
+	@Override
+	protected void setLeft(int node, int child) {
+		set(node, LEFT, child);
+	}
+
+	@Override
+	protected int right(int node) {
+		return get(node, RIGHT);
+	}
+
+	@Override
+	protected void setRight(int node, int child) {
+		set(node, RIGHT, child);
+	}
+
+	@Override
+	protected int storedLevel(int node) {
+		return get(node, LEVEL);
+	}
+
+	@Override
+	protected void setLevel(int node, int level) {
+		set(node, LEVEL, level);
+	}
+
+	@Override
+	protected int capacity() {
+		return chunkCount * CHUNK_NODES;
+	}
+
+	/**
+	 * Adds a buffer of nodes.
+	 *
+	 * @throws UncheckedIOException if the file cannot be extended.
+	 */
+	@Override
+	protected void grow() {
+		try {
+			addChunk();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the root, size and free list to the header after every change.
+	 */
+	@Override
+	protected void modified() {
+		writeHeader();
+	}
+
+	/**
+	 * Writes the nodes and header of a tree mapped from a file to the file.
+	 */
+	public void force() {
+		if(channel == null) {
+			return;
+		}
+		for(int i = 0; i < chunkCount; i++) {
+			((MappedByteBuffer) chunks[i]).force();
+		}
+		((MappedByteBuffer) header).force();
+	}
+
+	/**
+	 * Writes a tree mapped from a file to the file and closes it. The tree
+	 * must not be used afterwards.
+	 *
+	 * Java cannot unmap a buffer explicitly, so the mappings, and the direct
+	 * buffers of a tree that has no file, are only released once the garbage
+	 * collector finds them unreachable; until then the file may not be
+	 * deletable on some systems.
+	 *
+	 * @throws IOException if the file cannot be closed.
+	 */
+	public void close() throws IOException {
+		if(channel != null) {
+			force();
+			channel.close();
+		}
+		chunks = null;
+		chunkCount = 0;
+	}
+
+	/**
+	 * Inserts random keys into a tree in direct buffers and prints the heap
+	 * and off-heap memory it takes; then, if a file is named, opens the tree
+	 * in it, building it from the same keys first if the file is new, and
+	 * prints how long opening took.
+	 *
+	 * @param args optionally, the number of keys (5000000 by default), then
+	 *             optionally the name of a tree file.
+	 *
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public static void main(String args[]) throws IOException {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		int[] keys = new int[n];
+		Random random = new Random(221);
+		for(int i = 0; i < n; i++) {
+			keys[i] = random.nextInt();
+		}
+
+		long before = usedMemory();
+		long start = System.nanoTime();
+		OffHeapBinarySearchTree tree = new OffHeapBinarySearchTree();
+		for(int key : keys) {
+			tree.add(key);
+		}
+		boolean valid = true;
+		for(int key : keys) {
+			valid &= tree.contains(key);
+		}
+		long nanos = System.nanoTime() - start;
+		System.out.printf("direct  n=%-9d %6.1f MB heap %7.1f MB off-heap %7.1f ns/op  valid=%b%n",
+		                  n, (usedMemory() - before) / 1e6, tree.capacityBytes() / 1e6,
+		                  nanos / (2.0 * n), valid && tree.testTree());
+		tree.close();
+
+		if(args.length < 2) {
+			return;
+		}
+
+		String fileName = args[1];
+		if(!new File(fileName).exists() || new File(fileName).length() == 0) {
+			start = System.nanoTime();
+			tree = open(fileName);
+			for(int key : keys) {
+				tree.add(key);
+			}
+			tree.close();
+			System.out.printf("build   n=%-9d %6.1f MB file  %7.1f ms%n", tree.size(),
+			                  new File(fileName).length() / 1e6, (System.nanoTime() - start) / 1e6);
+		}
+
+		start = System.nanoTime();
+		tree = open(fileName);
+		nanos = System.nanoTime() - start;
+		valid = true;
+		for(int i = 0; i < Math.min(n, 1000); i++) {
+			valid &= tree.contains(keys[i]);
+		}
+		System.out.printf("open    n=%-9d %6.1f MB file  %7.3f ms  min=%d max=%d  valid=%b%n",
+		                  tree.size(), new File(fileName).length() / 1e6, nanos / 1e6,
+		                  tree.minimumValue(), tree.maximumValue(), valid);
+		tree.close();
+	}
+}
@@ -11,38 +11,218 @@ public class Unhuff {
     
     public static final int CHAR_MAX = 256;  // max char value to be encoded
     
+    
+    /** Returns the magic number that the supplied file starts with.
+      * 
+      * Files that carry their own codes start with a magic number identifying
+      * their format; files that need a separate .code file start with anything.
+      * 
+      * @param fileName the name of the .huff file.
+      * @throws IOException if the file cannot be opened.
+      * @return the first four bytes of the file, or 0 if it is shorter.
+      */
+    private static int readMagic(String fileName) throws IOException {
+        FileInputStream input = new FileInputStream(fileName);
+        int magic = 0;
+        int bytes = 0;
+        for (; bytes < Integer.BYTES; bytes++) {
+            int n = input.read();
+            if (n == -1)
+                break;
+            magic |= n << (bytes * 8);
+        }
+        input.close();
+        return bytes == Integer.BYTES ? magic : 0;
+    }
+    
     /** Uncompresses the contents of the user specified .huff file.
       * 
       * The user supplies the file to be uncompressed via the console. The 
       * uncompressed contents are written to a file with the same name as
       * the original, but with the .unhuff extension.
       * 
-      * @param args ignored.
+      * With the -stream option there is no prompt: standard input, as written
+      * by Huff -stream or Huff -adaptive, is uncompressed to standard output.
+      * With the -archive option every file of the named HuffArchive is
+      * extracted into the named directory. An archive entered at the prompt
+      * is extracted into a directory named after its stem. With the -models
+      * option each named file is uncompressed without a prompt, taking the
+      * models of files coded by Huff -model from the named directory rather
+      * than the current one.
+      * 
+      * The -range option writes the given range of the original file of a
+      * canonical .huff file to standard output, starting at the nearest sync
+      * point if the file was written by Huff -index.
+      * 
+      * A leading -metrics option prints the decode throughput of each
+      * uncompressed file, stream, archive or range to standard error, along
+      * with the time taken to read the codes and to decode for the formats
+      * that keep their codes apart from the data.
+      * 
+      * @param args optionally, -metrics, then optionally -stream, -archive
+      *        archive directory, -models directory file..., or -range file
+      *        offset length.
       * @throws IOException if the user supplied file cannot be opened.
       */
     public static void main(String[] args) throws IOException {
+        HuffmanMetrics metrics = HuffmanMetrics.NONE;
+        if (args.length > 0 && args[0].equals("-metrics")) {
+            metrics = HuffmanMetrics.printTo(System.err);
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        
+        long start = System.nanoTime();
+        if (args.length > 0 && args[0].equals("-stream")) {
+            BufferedInputStream stream = new BufferedInputStream(System.in);
+            stream.mark(Integer.BYTES);
+            int magic = HuffmanInputStream.readInt(stream);
+            stream.reset();
+            InputStream input;
+            if (magic == AdaptiveHuffmanOutputStream.MAGIC
+                    || magic == AdaptiveHuffmanOutputStream.LEGACY_MAGIC)
+                input = new AdaptiveHuffmanInputStream(stream);
+            else
+                input = new HuffmanInputStream(stream);
+            long decoded = input.transferTo(System.out);
+            System.out.flush();
+            metrics.decoded("standard input", decoded, System.nanoTime() - start);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-archive")) {
+            if (args.length != 3)
+                throw new IllegalArgumentException("Usage: Unhuff -archive archive directory");
+            long extracted = HuffArchive.extract(args[1], args[2],
+                                                 Runtime.getRuntime().availableProcessors());
+            metrics.decoded(args[1], extracted, System.nanoTime() - start);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-range")) {
+            if (args.length != 4)
+                throw new IllegalArgumentException("Usage: Unhuff -range file offset length");
+            IndexedHuffReader reader = new IndexedHuffReader(args[1]);
+            byte[] range = reader.decodeRange(Long.parseLong(args[2]), Integer.parseInt(args[3]));
+            System.out.write(range);
+            System.out.flush();
+            metrics.decoded(args[1], range.length, System.nanoTime() - start);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-models")) {
+            if (args.length < 2)
+                throw new IllegalArgumentException("Usage: Unhuff -models directory file...");
+            HuffmanModelCache models = new HuffmanModelCache(args[1], HuffmanModelCache.DEFAULT_CAPACITY);
+            for (int i = 2; i < args.length; i++)
+                unhuff(args[i], models, metrics);
+            return;
+        }
         
         // Get file name from the user
         System.out.print("Please enter name of file to be unhuffed "
                              + "(file name must end with .huff): ");
         Scanner console = new Scanner(System.in);                
         
-        // Fetch the name of the file to be unhuffed
-        String inputFileName = console.next();
+        // Fetch the name of the file to be unhuffed and uncompress it
+        unhuff(console.next(), new HuffmanModelCache(".", HuffmanModelCache.DEFAULT_CAPACITY),
+               metrics);
+    }
+    
+    
+    /** Uncompresses the supplied .huff file into a file with the same name,
+      * but with the .unhuff extension, choosing the format by its magic
+      * number.
+      * 
+      * @param inputFileName the name of the file to be uncompressed.
+      * @param models the cache of models for files coded by Huff -model.
+      * @param metrics the listener that receives the timings.
+      * @throws IOException if a file cannot be opened.
+      */
+    private static void unhuff(String inputFileName, HuffmanModelCache models,
+                               HuffmanMetrics metrics) throws IOException {
+        long start = System.nanoTime();
+        decompress(inputFileName, models, metrics, start);
+        if (metrics != HuffmanMetrics.NONE) {
+            Scanner tokenizer = new Scanner(inputFileName);
+            tokenizer.useDelimiter("\\.");
+            File output = new File(tokenizer.next() + ".unhuff");
+            if (output.isFile())
+                metrics.decoded(inputFileName, output.length(), System.nanoTime() - start);
+        }
+    }
+    
+    
+    /** Uncompresses the supplied .huff file, reporting the stages of the
+      * formats that have separate code and data sections.
+      * 
+      * @param inputFileName the name of the file to be uncompressed.
+      * @param models the cache of models for files coded by Huff -model.
+      * @param metrics the listener that receives the timings.
+      * @param start the value of System.nanoTime when uncompression began.
+      * @throws IOException if a file cannot be opened or its codes are corrupt.
+      */
+    private static void decompress(String inputFileName, HuffmanModelCache models,
+                                   HuffmanMetrics metrics, long start) throws IOException {
         Scanner tokenizer = new Scanner(inputFileName);
         tokenizer.useDelimiter("\\.");
         String fileStem = tokenizer.next();
         
-        // open code file and construct tree
-        Scanner codeInput = new Scanner(new File(fileStem + ".code"));
-        HuffmanTree tree = new HuffmanTree(codeInput);
+        int magic = readMagic(inputFileName);
+        if (magic == BlockHuff.MAGIC) {
+            BlockHuff.decompress(inputFileName, fileStem + ".unhuff");
+            return;
+        }
+        if (magic == ContextHuff.MAGIC) {
+            ContextHuff.decompress(inputFileName, fileStem + ".unhuff");
+            return;
+        }
+        if (magic == LzHuff.MAGIC) {
+            LzHuff.decompress(new BufferedInputStream(new FileInputStream(inputFileName)),
+                              new FileOutputStream(fileStem + ".unhuff"));
+            return;
+        }
+        if (magic == HuffmanModel.FILE_MAGIC) {
+            HuffmanModel.decode(inputFileName, fileStem + ".unhuff", models);
+            return;
+        }
+        if (magic == HuffArchive.MAGIC) {
+            long extracted = HuffArchive.extract(inputFileName, fileStem,
+                                                 Runtime.getRuntime().availableProcessors());
+            metrics.decoded(inputFileName, extracted, System.nanoTime() - start);
+            return;
+        }
         
-        // open encoded file, open output, decode
+        // open code file or header and build the decoding table from its codes
         BitInputStream input = new BitInputStream(inputFileName);
+        long[] codes;
+        int[] lengths;
+        HuffmanDecoder decoder;
+        String codeFileName = magic == HuffmanTree.MAGIC ? inputFileName : fileStem + ".code";
+        try {
+            if (magic == HuffmanTree.MAGIC) {
+                lengths = HuffmanTree.readHeader(input);
+                codes = HuffmanTree.canonicalCodes(lengths);
+            } else {
+                codes = new long[CHAR_MAX + 1];
+                lengths = new int[CHAR_MAX + 1];
+                Scanner codeInput = new Scanner(new File(codeFileName));
+                try {
+                    HuffmanTree.readCodes(codeInput, codes, lengths);
+                } finally {
+                    codeInput.close();
+                }
+            }
+            decoder = new HuffmanDecoder(codes, lengths);
+        } catch (IllegalArgumentException e) {
+            input.close();
+            throw new IOException(e.getMessage() + ": " + codeFileName);
+        }
+        long read = System.nanoTime();
+        metrics.stage(inputFileName, "read codes", read - start);
+        
+        // open output, decode
         PrintStream output = new PrintStream(new File(fileStem + ".unhuff"));
-        tree.decode(input, output, CHAR_MAX);
+        decoder.decode(input, output, CHAR_MAX);
         input.close();
         output.close();        
+        metrics.stage(inputFileName, "decode", System.nanoTime() - read);
     }
     
 }